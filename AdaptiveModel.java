@@ -0,0 +1,71 @@
+/**
+ * The code model of an adaptive Huffman stream, kept in step by the encoder
+ * and the decoder
+ *
+ * Instead of counting the whole input first, both sides start with every
+ * symbol equally likely and count the symbols as they are coded. The codes are
+ * rebuilt from the counts after 1024 symbols, then after twice as many each
+ * time, up to the refresh interval. From then on the counts are halved at each
+ * refresh, so the codes follow the data as it changes (e.g. a log that moves
+ * on to different messages).
+ *
+ * Symbols 0-255 are bytes, END marks the end of the stream and FLUSH is
+ * followed by padding to a whole byte.
+ *
+ */
+public class AdaptiveModel {
+   static final int END = 256; // End of the stream, the digest follows
+   static final int FLUSH = 257; // The rest of the byte is padding
+   static final int SIZE = 258; // Number of symbols
+   private static final int FIRST_REFRESH = 1024; // Symbols coded with the initial codes
+
+   private final int interval; // Symbols between refreshes once the interval has grown
+   private final int[] counts = new int[SIZE];
+   private int untilRefresh; // Symbols left before the next refresh
+   private int currentInterval; // Length of the current interval
+
+   Node root; // The current Huffman tree
+   String[] codes; // The current codes, index is the symbol
+
+   /**
+    * Create a model with the initial codes
+    *
+    * @param interval Symbols between refreshes, stored in the header
+    */
+   AdaptiveModel(int interval) {
+      if (interval <= 0)
+         throw new IllegalArgumentException("Refresh interval must be positive");
+      this.interval = interval;
+      for (int i = 0; i < SIZE; i++)
+         counts[i] = 1; // Every symbol needs a code before it has been seen
+      currentInterval = Math.min(FIRST_REFRESH, interval);
+      untilRefresh = currentInterval;
+      rebuild();
+   }
+
+   /**
+    * Count a symbol that has just been coded, and refresh the codes if it is
+    * time
+    *
+    * @param symbol The symbol
+    */
+   void update(int symbol) {
+      counts[symbol]++;
+      if (--untilRefresh > 0)
+         return;
+      rebuild();
+      if (currentInterval < interval) {
+         currentInterval = (int) Math.min((long) currentInterval * 2, interval);
+      } else {
+         for (int i = 0; i < SIZE; i++)
+            counts[i] = (counts[i] + 1) / 2; // Never 0
+      }
+      untilRefresh = currentInterval;
+   }
+
+   /** Build the tree and codes from the counts */
+   private void rebuild() {
+      root = HuffmanCompress.getHuffmanTree(counts).root;
+      codes = HuffmanCompress.getCode(root, SIZE);
+   }
+}
@@ -0,0 +1,129 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Map;
+
+public class Archive_Files {
+
+   public static void main(String[] args) {
+      boolean shared = false;
+      boolean runLength = false;
+      int pairCount = 0;
+      ArrayList<String> files = new ArrayList<>(); // Arguments that are not options
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("--shared")) {
+            shared = true;
+         } else if (args[i].equals("--rle")) {
+            runLength = true;
+         } else if (args[i].equals("--pairs") && i + 1 < args.length) {
+            try {
+               pairCount = Integer.parseInt(args[++i]);
+            } catch (NumberFormatException e) {
+               System.out.println("Number of pairs " + args[i] + " is not a number");
+               System.exit(1);
+            }
+         } else {
+            files.add(args[i]);
+         }
+      }
+      args = files.toArray(new String[0]);
+
+      if (args.length >= 3 && args[0].equals("create") && args.length <= 4) {
+         create(args[1], args[2], args.length == 4 ? args[3] : "SHA-256", shared, runLength, pairCount);
+      } else if (args.length == 2 && args[0].equals("list")) {
+         list(args[1]);
+      } else if (args.length == 4 && args[0].equals("extract")) {
+         extract(args[1], args[2], args[3]);
+      } else {
+         System.out.println("Usage: java Archive_Files create [--shared] [--rle] [--pairs n] archive source [hash]");
+         System.out.println("       java Archive_Files list archive");
+         System.out.println("       java Archive_Files extract archive name outfile");
+         System.out.println("  source is a directory, a glob, or @listfile");
+         System.out.println("  --shared uses one code table for all files, not with --rle or --pairs");
+         System.out.println("  --rle codes runs of a repeated byte as single symbols");
+         System.out.println("  --pairs n codes up to n byte pairs as single symbols, the ones that save the most");
+         System.exit(1);
+      }
+   }
+
+   private static void create(String archive, String source, String hashAlgorithm, boolean shared,
+         boolean runLength, int pairCount) {
+      if (new File(archive).exists()) {
+         System.out.println("File " + archive + " already exists");
+         System.exit(1);
+      }
+      if (shared && (runLength || pairCount > 0)) {
+         System.out.println("--shared can't be used with --rle or --pairs");
+         System.exit(1);
+      }
+      try {
+         MessageDigest.getInstance(hashAlgorithm);
+      } catch (NoSuchAlgorithmException e) {
+         System.out.println(e.getMessage());
+         System.exit(1);
+      }
+      try {
+         Map<Path, Path> inputs = HuffmanBatch.findInputs(source);
+         if (inputs.isEmpty()) {
+            System.out.println("No files found in " + source);
+            System.exit(1);
+         }
+         HuffmanArchiveWriter writer = new HuffmanArchiveWriter(hashAlgorithm, shared, runLength, pairCount);
+         for (Map.Entry<Path, Path> input : inputs.entrySet())
+            writer.add(input.getValue().toString().replace(File.separatorChar, '/'), input.getKey());
+         writer.write(Paths.get(archive));
+         System.out.println(inputs.size() + " files archived");
+      } catch (IOException e) {
+         System.out.println(e.getMessage());
+         System.exit(1);
+      }
+   }
+
+   private static void list(String archive) {
+      try (HuffmanArchive a = new HuffmanArchive(Paths.get(archive))) {
+         System.out.printf("%d tables, digest algorithm: %s%n", a.getTableCount(), a.getHashAlgorithm());
+         for (HuffmanArchive.Entry entry : a.getEntries()) {
+            System.out.printf("%12d %12d  %s  %s%n", entry.getUncompressedSize(), entry.getCompressedSize(),
+                  String.format("%02X", new BigInteger(1, entry.getDigest())), entry.getName());
+         }
+      } catch (IOException e) {
+         System.out.println(e.getMessage());
+         System.exit(1);
+      }
+   }
+
+   private static void extract(String archive, String name, String outFileName) {
+      if (new File(outFileName).exists()) {
+         System.out.println("File " + outFileName + " already exists");
+         System.exit(1);
+      }
+      try (HuffmanArchive a = new HuffmanArchive(Paths.get(archive))) {
+         HuffmanArchive.Entry entry = a.getEntry(name);
+         if (entry == null) {
+            System.out.println("No entry " + name + " in " + archive);
+            System.exit(1);
+         }
+         boolean verified;
+         try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outFileName))) {
+            verified = a.extract(entry, out);
+         }
+         if (verified) {
+            System.out.println("File decompressed successfully, hash verified");
+         } else {
+            System.out.println("File decompressed but the hash does not match");
+            System.exit(1);
+         }
+      } catch (IOException e) {
+         System.out.println(e.getMessage());
+         System.exit(1);
+      }
+   }
+}
@@ -1,21 +1,32 @@
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 
 
 
 public class BitOutputStream implements  AutoCloseable{
-   private FileOutputStream output;
+   private OutputStream output;
    private byte byteBuffer = 0; // Current buffer contents
    private byte bytePosition = 0; // Current byte position in the buffer
+   private long bytesWritten = 0; // Number of bytes written to output
 
    // Constructor
    public BitOutputStream(File file)  throws IOException {
       output = new FileOutputStream(file);
    }
-   public BitOutputStream(FileOutputStream fh)  {
-      output = fh;
+   public BitOutputStream(OutputStream out)  {
+      output = out;
+   }
+
+   /**
+    * Get the number of bytes written so far, not counting a partial byte
+    * 
+    * @return The number of bytes
+    */
+   public long getBytesWritten() {
+      return bytesWritten;
    }
 
    /**
@@ -61,6 +72,7 @@ public class BitOutputStream implements  AutoCloseable{
       if (bytePosition != 0) {
          byteBuffer = (byte) (byteBuffer << (8 - bytePosition)); // the last byte is not full, pad it
          output.write(byteBuffer);
+         bytesWritten++;
          byteBuffer = 0;
          bytePosition = 0;
       }
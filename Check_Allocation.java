@@ -0,0 +1,141 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks that a warmed up HuffmanDecoder allocates nothing on the Java heap
+ *
+ * Each corpus is compressed with one stream and four, with and without run and
+ * pair symbols, and decoded over and over by one decoder. Then each file is
+ * decoded in turn with the one before it, and the last RECENT_HEADERS files
+ * one after another, so every call switches to a different header. The calls
+ * after warmup are measured in rounds, and if every round allocates something
+ * the check fails and the exit status is 1. A single round is not enough, the
+ * JVM can allocate once in a while on its own (e.g. while compiling).
+ *
+ * Usage: java Check_Allocation [sizeKB]
+ */
+public class Check_Allocation {
+   private static final int WARMUP = 1000; // Calls before measuring, so the JIT has compiled the decoder
+   private static final int CALLS = 200; // Calls measured in each round
+   private static final int ROUNDS = 5; // Rounds before giving up on one without allocation
+   private static final String HASH = "SHA-256";
+
+   public static void main(String[] args) throws IOException {
+      int sizeKB = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+      if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+         System.out.println("This JVM can't count allocated bytes");
+         System.exit(1);
+      }
+      Logger.getLogger(HuffmanCompress.class.getName()).setLevel(Level.WARNING);
+
+      File dir = Files.createTempDirectory("huffcheck").toFile();
+      int failures = 0;
+      try {
+         File restored = new File(dir, "restored");
+         List<File> compressed = new ArrayList<>();
+         String previous = null;
+         for (String corpus : new String[] { "uniform", "english", "skewed", "runs" }) {
+            File in = new File(dir, corpus + ".txt");
+            Files.write(in.toPath(), HuffmanBenchmark.generate(corpus, sizeKB * 1024));
+            for (int streams : new int[] { 1, HuffmanHeader.STREAMS }) {
+               for (boolean transform : new boolean[] { false, true }) {
+                  String name = corpus + ", " + streams + (streams == 1 ? " stream" : " streams")
+                        + (transform ? ", rle+pairs" : "");
+                  File out = new File(dir, corpus + streams + transform + ".huf");
+                  HuffmanCompress h = new HuffmanCompress(in.getPath(), out.getPath(), HASH, transform,
+                        transform ? 256 : 0);
+                  h.setStreams(streams);
+                  h.writeCompressed();
+
+                  failures += check(name, allocated(restored, out));
+                  if (Files.mismatch(in.toPath(), restored.toPath()) != -1) {
+                     System.out.println("FAIL " + name + ": output does not match the original");
+                     failures++;
+                  }
+                  if (previous != null)
+                     failures += check(name + " in turn with " + previous,
+                           allocated(restored, compressed.get(compressed.size() - 1), out));
+                  compressed.add(out);
+                  previous = name;
+               }
+            }
+         }
+         List<File> working = compressed.subList(compressed.size() - HuffmanDecoder.RECENT_HEADERS,
+               compressed.size());
+         failures += check("last " + working.size() + " files in turn", allocated(restored, working.toArray(new File[0])));
+      } finally {
+         File[] files = dir.listFiles();
+         if (files != null)
+            for (File f : files)
+               f.delete();
+         dir.delete();
+      }
+      if (failures > 0) {
+         System.out.println(failures + " failed");
+         System.exit(1);
+      }
+      System.out.println("No allocation after warmup");
+   }
+
+   /** Report a measurement, returns 1 if it failed */
+   private static int check(String name, long allocated) {
+      if (allocated == 0) {
+         System.out.println("ok   " + name);
+         return 0;
+      }
+      System.out.println("FAIL " + name + ": at least " + allocated + " bytes in every " + CALLS + " calls");
+      return 1;
+   }
+
+   /**
+    * Decode the files in turn with one decoder, and count what the measured
+    * calls allocate
+    *
+    * @param restored Where to decode to
+    * @param files    The compressed files
+    * @return Fewest bytes allocated by a round of calls, stops at the first
+    *         round that allocates nothing
+    */
+   private static long allocated(File restored, File... files) throws IOException {
+      com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+      FileChannel[] compressed = new FileChannel[files.length];
+      try (HuffmanDecoder decoder = new HuffmanDecoder();
+            FileChannel decoded = FileChannel.open(restored.toPath(), StandardOpenOption.WRITE,
+                  StandardOpenOption.CREATE)) {
+         for (int i = 0; i < files.length; i++)
+            compressed[i] = FileChannel.open(files[i].toPath(), StandardOpenOption.READ);
+         for (int i = 0; i < WARMUP; i++)
+            decode(decoder, compressed[i % files.length], decoded);
+         long allocated = Long.MAX_VALUE;
+         for (int round = 0; round < ROUNDS && allocated > 0; round++) {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < CALLS; i++)
+               decode(decoder, compressed[i % files.length], decoded);
+            allocated = Math.min(allocated, threads.getCurrentThreadAllocatedBytes() - before);
+         }
+         decoded.truncate(decoded.position());
+         return allocated;
+      } finally {
+         for (FileChannel channel : compressed)
+            if (channel != null)
+               channel.close();
+      }
+   }
+
+   private static void decode(HuffmanDecoder decoder, FileChannel compressed, FileChannel decoded)
+         throws IOException {
+      compressed.position(0);
+      decoded.position(0);
+      if (!decoder.decompress(compressed, decoded))
+         throw new IOException("Digest mismatch");
+   }
+}
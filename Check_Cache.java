@@ -0,0 +1,92 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks that HuffmanCache serves repeat reads, and never serves a file's old
+ * contents after it has been rewritten
+ *
+ * The rewrite keeps the size and the modification time of the old file, so
+ * only the header check in the cache can tell. Exits with status 1 if any
+ * check fails.
+ *
+ * Usage: java Check_Cache
+ */
+public class Check_Cache {
+   private static final String HASH = "SHA-256";
+   private static int failures = 0;
+
+   public static void main(String[] args) throws IOException {
+      Logger.getLogger(HuffmanCompress.class.getName()).setLevel(Level.WARNING);
+
+      File dir = Files.createTempDirectory("huffcache").toFile();
+      try {
+         byte[] original = HuffmanBenchmark.generate("english", 64 * 1024);
+         byte[] changed = original.clone();
+         for (int i = 0; i < changed.length; i++)
+            changed[i] ^= 1; // Same code lengths, so the same compressed size
+         File compressed = compress(dir, "original", original);
+         File rewrite = compress(dir, "changed", changed);
+         File restored = new File(dir, "restored");
+
+         HuffmanCache cache = new HuffmanCache(16, 1024 * 1024);
+         decompress(cache, compressed, restored, original, "first read");
+         check(cache.getHeaderMisses() == 1 && cache.getDecodedMisses() == 1, "first read is a miss");
+         decompress(cache, compressed, restored, original, "second read");
+         check(cache.getHeaderHits() == 1 && cache.getDecodedHits() == 1, "second read uses the cached data");
+
+         HuffmanCache headers = new HuffmanCache(16, 0);
+         decompress(headers, compressed, restored, original, "first read, headers only");
+         decompress(headers, compressed, restored, original, "second read, headers only");
+         check(headers.getHeaderHits() == 1, "second read uses the cached header");
+
+         if (compressed.length() != rewrite.length()) {
+            System.out.println("FAIL the rewrite is not the same size, can't check it");
+            failures++;
+         } else {
+            FileTime modified = Files.getLastModifiedTime(compressed.toPath());
+            Files.copy(rewrite.toPath(), compressed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(compressed.toPath(), modified);
+            decompress(cache, compressed, restored, changed, "rewrite with the same size and time");
+            decompress(headers, compressed, restored, changed, "rewrite with the same size and time, headers only");
+         }
+      } finally {
+         File[] files = dir.listFiles();
+         if (files != null)
+            for (File f : files)
+               f.delete();
+         dir.delete();
+      }
+      if (failures > 0) {
+         System.out.println(failures + " failed");
+         System.exit(1);
+      }
+      System.out.println("Cache checks passed");
+   }
+
+   private static File compress(File dir, String name, byte[] data) throws IOException {
+      File in = new File(dir, name + ".txt");
+      File out = new File(dir, name + ".huf");
+      Files.write(in.toPath(), data);
+      new HuffmanCompress(in.getPath(), out.getPath(), HASH).writeCompressed();
+      return out;
+   }
+
+   private static void decompress(HuffmanCache cache, File compressed, File restored, byte[] expected,
+         String name) throws IOException {
+      restored.delete();
+      boolean verified = new HuffmanDecompress(compressed.getPath(), restored.getPath(), cache).write();
+      check(verified && Arrays.equals(Files.readAllBytes(restored.toPath()), expected), name);
+   }
+
+   private static void check(boolean passed, String name) {
+      System.out.println((passed ? "ok   " : "FAIL ") + name);
+      if (!passed)
+         failures++;
+   }
+}
@@ -1,4 +1,9 @@
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
@@ -10,24 +15,124 @@ import java.util.Enumeration;
   public class Compress_a_File {
   public static void main(String[] args) {
     String hashAlgorithm = "SHA-256";
-    if ((args.length != 2) && (args.length != 3)) {
-      System.out.println("Usage: java Compress infile outfile [hash]");
+    boolean runLength = false;
+    int pairCount = 0;
+    boolean stats = false;
+    boolean batch = false;
+    boolean interleaved = false;
+    boolean adaptive = false;
+    int refresh = HuffmanOutputStream.DEFAULT_REFRESH;
+    boolean refreshSet = false;
+    int threads = Runtime.getRuntime().availableProcessors();
+    ArrayList<String> files = new ArrayList<>(); // Arguments that are not options
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--stats")) {
+        stats = true;
+      } else if (args[i].equals("--batch")) {
+        batch = true;
+      } else if (args[i].equals("--threads") && i + 1 < args.length) {
+        try {
+          threads = Integer.parseInt(args[++i]);
+        } catch (NumberFormatException e) {
+          System.out.println("Number of threads " + args[i] + " is not a number");
+          System.exit(1);
+        }
+      } else if (args[i].equals("--adaptive")) {
+        adaptive = true;
+      } else if (args[i].equals("--refresh") && i + 1 < args.length) {
+        int kb = 0;
+        try {
+          kb = Integer.parseInt(args[++i]);
+        } catch (NumberFormatException e) {
+          System.out.println("Refresh interval " + args[i] + " is not a number");
+          System.exit(1);
+        }
+        if (kb < 1 || kb > Integer.MAX_VALUE / 1024) { // Checked before multiplying, so it can't wrap around
+          System.out.println("Refresh interval must be from 1 to " + Integer.MAX_VALUE / 1024 + " KB");
+          System.exit(1);
+        }
+        refresh = kb * 1024;
+        refreshSet = true;
+      } else if (args[i].equals("--streams")) {
+        interleaved = true;
+      } else if (args[i].equals("--rle")) {
+        runLength = true;
+      } else if (args[i].equals("--pairs") && i + 1 < args.length) {
+        try {
+          pairCount = Integer.parseInt(args[++i]);
+        } catch (NumberFormatException e) {
+          System.out.println("Number of pairs " + args[i] + " is not a number");
+          System.exit(1);
+        }
+      } else {
+        files.add(args[i]);
+      }
+    }
+    args = files.toArray(new String[0]);
+
+    String conflict = null; // Options that can't be used together
+    if (adaptive && batch) {
+      conflict = "--adaptive can't be used with --batch";
+    } else if (adaptive && (interleaved || runLength || pairCount > 0)) {
+      conflict = "--adaptive can't be used with --streams, --rle or --pairs";
+    } else if (refreshSet && !adaptive) {
+      conflict = "--refresh only works with --adaptive";
+    }
+    if (conflict != null)
+      System.out.println(conflict);
+
+    if ((args.length != 2) && (args.length != 3) || conflict != null) {
+      System.out.println("Usage: java Compress [--stats] [--streams] [--rle] [--pairs n] infile outfile [hash]");
+      System.out.println("       java Compress --batch [--threads n] [--streams] [--rle] [--pairs n] source outdir [hash]");
+      System.out.println("       java Compress --adaptive [--refresh kb] [--stats] infile outfile [hash]");
+      System.out.println("  --stats prints sizes, throughput and time spent in each phase");
+      System.out.println("  --batch compresses every file in source, which is a directory, a glob,");
+      System.out.println("    or @listfile, into outdir. --threads sets how many run at once");
+      System.out.println("  --streams splits the output into " + HuffmanHeader.STREAMS
+          + " interleaved bit streams, faster to decompress");
+      System.out.println("  --adaptive compresses in one pass, output starts straight away. infile can");
+      System.out.println("    be - to read standard input, e.g. a live log");
+      System.out.println("  --refresh sets how often the adaptive codes are rebuilt, default "
+          + HuffmanOutputStream.DEFAULT_REFRESH / 1024 + " KB");
+      System.out.println("  --rle codes runs of a repeated byte as single symbols");
+      System.out.println("  --pairs n codes up to n byte pairs as single symbols, the ones that save the most");
+      System.out.println("    --rle and --pairs fall back to single bytes if they don't make the file smaller");
       System.out.println("  infile is the file to be compressed");
       System.out.println("  outfile is the compressed file");
       System.out.println("  hash algorithm is the hash algorithm to use");
       System.out.println("  valid hash algorithms are: " + getHashAlgorithms());
       System.exit(1);
     }
+
+    if(args.length == 3) { // Test if the hash algorithm is valid
+      try { 
+        hashAlgorithm = args[2];
+        MessageDigest.getInstance(hashAlgorithm); // no need to store the MessageDigest object, we just want to see if it throws an exception
+      } catch(NoSuchAlgorithmException e){
+        System.out.println(e.getMessage());
+        System.exit(1);
+      }
+    } 
+
+    if (batch) {
+      HuffmanBatch b = new HuffmanBatch(true, threads, hashAlgorithm, runLength, pairCount);
+      if (interleaved)
+        b.setStreams(HuffmanHeader.STREAMS);
+      b.runCommandLine(args[0], args[1]);
+      return;
+    }
+
     File inFile = new File(args[0]);
-    if (!inFile.exists()) {
+    boolean standardInput = adaptive && args[0].equals("-"); // Nothing to check
+    if (!standardInput && !inFile.exists()) {
       System.out.println("File " + args[0] + " does not exist");
       System.exit(1);
     }
-    if (!inFile.isFile()) {
+    if (!standardInput && !inFile.isFile()) {
       System.out.println("File " + args[0] + " is not a file");
       System.exit(1);
     }
-    if (!inFile.canRead()) {
+    if (!standardInput && !inFile.canRead()) {
       System.out.println("File " + args[0] + " cannot be read");
       System.exit(1);
     }
@@ -40,21 +145,57 @@ import java.util.Enumeration;
       System.out.println("File " + args[1] + " is a directory");
       System.exit(1);
     }
- 
-    if(args.length == 3) { // Test if the hash algorithm is valid
-      try { 
-        hashAlgorithm = args[2];
-        MessageDigest.getInstance(hashAlgorithm); // no need to store the MessageDigest object, we just want to see if it throws an exception
-      } catch(NoSuchAlgorithmException e){
-        System.out.println(e.getMessage());
-        System.exit(1);
+
+    if (adaptive) {
+      compressAdaptive(args[0], args[1], hashAlgorithm, refresh, stats);
+      return;
+    }
+
+    try {
+      HuffmanCompress h = new HuffmanCompress(args[0], args[1], hashAlgorithm, runLength, pairCount);
+      if (interleaved)
+        h.setStreams(HuffmanHeader.STREAMS);
+      h.writeCompressedThread();
+      if (stats) {
+        System.out.print(h.getMetrics());
       }
-    } 
+    } catch (IOException e) {
+      System.out.println(e.getMessage());
+      outFile.delete(); // Checked above that it didn't exist, so it is only a partial file
+      System.exit(1);
+    }
 
-    HuffmanCompress h = new HuffmanCompress(args[0], args[1],hashAlgorithm);
-    h.writeCompressedThread();
 
+   }
 
+   /**
+    * Compress in one pass with adaptive codes
+    * 
+    * Input from standard input is flushed to the output as soon as it arrives,
+    * so the compressed file keeps up with e.g. a log being written.
+    */
+   private static void compressAdaptive(String inFileName, String outFileName, String hashAlgorithm, int refresh,
+         boolean stats) {
+      boolean live = inFileName.equals("-");
+      byte[] buffer = new byte[8192];
+      HuffmanOutputStream out = null;
+      try (InputStream in = live ? System.in : new FileInputStream(inFileName)) {
+         out = new HuffmanOutputStream(new BufferedOutputStream(new FileOutputStream(outFileName)), hashAlgorithm,
+               refresh);
+         int n;
+         while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+            if (live)
+               out.flush();
+         }
+         out.close();
+      } catch (IOException | NoSuchAlgorithmException e) {
+         System.out.println(e.getMessage());
+         System.exit(1);
+      }
+      if (stats) {
+         System.out.print(out.getMetrics());
+      }
    }
 
    /**
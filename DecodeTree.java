@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Huffman code tree for decoding, rebuilt from the code strings
+ *
+ * The tree is stored in an int array, two entries (the 0 and 1 branch) per
+ * internal node. A non-negative entry is the index of the next node, a
+ * negative entry is ~symbol for a leaf, and 0 means no code has that prefix.
+ * The root is node 0 and is never a child, so 0 can't be a real branch.
+ *
+ */
+public class DecodeTree {
+   private final int[] child;
+
+   /**
+    * Build the tree
+    *
+    * @param codes The code for each symbol, null if the symbol is not used
+    * @throws IOException if the codes are not a prefix code, e.g. from a
+    *                     corrupt archive
+    */
+   public DecodeTree(String[] codes) throws IOException {
+      int used = 0;
+      for (String code : codes)
+         if (code != null)
+            used++;
+      child = new int[2 * Math.max(used, 1)]; // A full binary tree has used - 1 internal nodes
+
+      int nodes = 1;
+      for (int symbol = 0; symbol < codes.length; symbol++) {
+         String code = codes[symbol];
+         if (code == null || code.isEmpty())
+            continue;
+         int node = 0;
+         for (int i = 0; i < code.length() - 1; i++) {
+            int branch = 2 * node + bit(code, i);
+            if (child[branch] == 0) {
+               if (2 * nodes >= child.length)
+                  throw new IOException("Corrupt archive, more code tree nodes than codes");
+               child[branch] = nodes++;
+            } else if (child[branch] < 0) {
+               throw new IOException("Corrupt archive, the code of symbol " + ~child[branch]
+                     + " is a prefix of symbol " + symbol);
+            }
+            node = child[branch];
+         }
+         int leaf = 2 * node + bit(code, code.length() - 1);
+         if (child[leaf] != 0)
+            throw new IOException("Corrupt archive, the code of symbol " + symbol + " is used twice");
+         child[leaf] = ~symbol;
+      }
+   }
+
+   /** Bit i of a code, checked so a bad code can't index outside the tree */
+   private static int bit(String code, int i) throws IOException {
+      char c = code.charAt(i);
+      if (c != '0' && c != '1')
+         throw new IOException("Corrupt archive, bad code " + code);
+      return c - '0';
+   }
+
+   /**
+    * Decode a bit stream
+    *
+    * @param in        The bits, read from the current position to the limit
+    * @param size      Number of bytes to produce
+    * @param transform The extended alphabet, null if each symbol is a byte
+    * @param out       Where to send the bytes
+    * @throws IOException if the bits run out or don't match a code
+    */
+   public void decode(ByteBuffer in, long size, SymbolTransform transform, SymbolTransform.ByteSink out)
+         throws IOException {
+      long[] written = { 0 };
+      SymbolTransform.ByteSink counted = b -> {
+         out.accept(b);
+         written[0]++;
+      };
+      int previous = -1; // Last byte written, needed to expand run symbols
+      int node = 0;
+      while (written[0] < size) {
+         if (!in.hasRemaining())
+            throw new IOException("Compressed data ended early");
+         int bits = in.get();
+         for (int i = 7; i >= 0 && written[0] < size; i--) {
+            int next = child[2 * node + ((bits >> i) & 1)];
+            if (next > 0) {
+               node = next;
+            } else if (next < 0) {
+               if (transform == null)
+                  counted.accept(~next);
+               else
+                  previous = transform.expand(~next, previous, counted);
+               node = 0;
+            } else {
+               throw new IOException("Compressed data does not match the codes");
+            }
+         }
+      }
+   }
+}
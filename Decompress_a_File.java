@@ -1,13 +1,45 @@
 import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
 
 public class Decompress_a_File {
 
    public static void main(String[] args) {
+      boolean stats = false;
+      boolean batch = false;
+      int threads = Runtime.getRuntime().availableProcessors();
+      ArrayList<String> files = new ArrayList<>(); // Arguments that are not options
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("--stats")) {
+            stats = true;
+         } else if (args[i].equals("--batch")) {
+            batch = true;
+         } else if (args[i].equals("--threads") && i + 1 < args.length) {
+            try {
+               threads = Integer.parseInt(args[++i]);
+            } catch (NumberFormatException e) {
+               System.out.println("Number of threads " + args[i] + " is not a number");
+               System.exit(1);
+            }
+         } else {
+            files.add(args[i]);
+         }
+      }
+      args = files.toArray(new String[0]);
+
       if ((args.length != 2)) {
-         System.out.println("Usage: java decompress input_file output_file");
+         System.out.println("Usage: java decompress [--stats] input_file output_file");
+         System.out.println("       java decompress --batch [--threads n] source outdir");
+         System.out.println("  --stats prints sizes, throughput and time spent in each phase");
+         System.out.println("  --batch decompresses every file in source, which is a directory, a glob,");
+         System.out.println("    or @listfile, into outdir. --threads sets how many run at once");
          System.exit(1);
       }
+      if (batch) {
+         new HuffmanBatch(false, threads, null, false, 0).runCommandLine(args[0], args[1]);
+         return;
+      }
       File inFile = new File(args[0]);
       if (!inFile.exists()) {
          System.out.println("File " + args[0] + " does not exist");
@@ -32,13 +64,23 @@ public class Decompress_a_File {
       }
 
 
-      HuffmanDecompress h = new HuffmanDecompress(args[0], args[1]);
-      System.out.printf("Digest algorithm: %s\n", h.getHashAlgorithm());
-      System.out.println("Digest: " + String.format("%02X", new BigInteger(1, h.getDigest())));
-      if (h.write()) {
-         System.out.println("File decompressed successfully, hash verified");
-      } else {
-         System.out.println("File not decompressed or not a valid Huffman compressed file");
+      HuffmanDecompress h = null;
+      try {
+         h = new HuffmanDecompress(args[0], args[1]);
+         System.out.printf("Digest algorithm: %s\n", h.getHashAlgorithm());
+         if (h.getDigest() != null)
+            System.out.println("Digest: " + String.format("%02X", new BigInteger(1, h.getDigest())));
+         if (h.write()) {
+            System.out.println("File decompressed successfully, hash verified");
+         } else {
+            System.out.println("File not decompressed or not a valid Huffman compressed file");
+         }
+      } catch (IOException e) {
+         System.out.println(e.getMessage());
+         System.exit(1);
+      }
+      if (stats) {
+         System.out.print(h.getMetrics());
       }
    }
 }
\ No newline at end of file
@@ -0,0 +1,43 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pool of direct (off heap) buffers, shared by all HuffmanDecoders
+ *
+ * Direct buffers are slow to allocate and are only freed by the GC, so they
+ * are handed back here when a decoder is closed and reused by the next one.
+ *
+ */
+public class DirectBufferPool {
+   private static final Map<Integer, ArrayDeque<ByteBuffer>> free = new HashMap<>(); // by capacity
+
+   private DirectBufferPool() {
+   }
+
+   /**
+    * Get a cleared, big endian buffer
+    *
+    * @param capacity The capacity in bytes
+    * @return A pooled buffer, or a new one if none is free
+    */
+   public static synchronized ByteBuffer acquire(int capacity) {
+      ArrayDeque<ByteBuffer> buffers = free.get(capacity);
+      ByteBuffer buffer = buffers == null ? null : buffers.poll();
+      if (buffer == null)
+         buffer = ByteBuffer.allocateDirect(capacity);
+      buffer.clear().order(ByteOrder.BIG_ENDIAN); // A previous user may have changed it
+      return buffer;
+   }
+
+   /**
+    * Return a buffer to the pool, it must not be used afterwards
+    *
+    * @param buffer A buffer from acquire()
+    */
+   public static synchronized void release(ByteBuffer buffer) {
+      free.computeIfAbsent(buffer.capacity(), c -> new ArrayDeque<>()).push(buffer);
+   }
+}
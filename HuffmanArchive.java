@@ -0,0 +1,319 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reader for an archive of many Huffman compressed files
+ *
+ * Layout of the archive file:
+ *
+ * <pre>
+ * int     MAGIC
+ * int     VERSION
+ * ...     the bit stream of each entry, padded to a whole byte
+ * ...     the central directory: hash algorithm, code tables, entries
+ * long    offset of the central directory
+ * int     MAGIC
+ * </pre>
+ *
+ * Entries can each have their own code table or share one. The trailer and
+ * the central directory are memory mapped to list the entries, and only the
+ * bytes of the requested entry are mapped to extract it.
+ *
+ */
+public class HuffmanArchive implements AutoCloseable {
+   static final int MAGIC = 0x48554641; // "HUFA"
+   static final int VERSION = 1;
+   static final int HEADER_SIZE = 8; // MAGIC and VERSION
+   static final int TRAILER_SIZE = 12; // directory offset and MAGIC
+
+   private final FileChannel channel;
+   private String hashAlgorithm;
+   private Table[] tables;
+   private final List<Entry> entries = new ArrayList<>();
+   private final Map<String, Entry> entriesByName = new HashMap<>();
+
+   /**
+    * A code table, used by one or more entries
+    */
+   static class Table {
+      final String[] codes; // the code for each symbol, index is the symbol
+      final SymbolTransform transform; // the extended alphabet, null for single bytes
+      private DecodeTree tree; // built on first use
+
+      Table(String[] codes, SymbolTransform transform) {
+         this.codes = codes;
+         this.transform = transform;
+      }
+
+      synchronized DecodeTree getDecodeTree() throws IOException {
+         if (tree == null)
+            tree = new DecodeTree(codes);
+         return tree;
+      }
+   }
+
+   /**
+    * A file in the archive
+    */
+   public static class Entry {
+      final String name;
+      final long offset; // position of the bit stream in the archive
+      final long compressedSize;
+      final long uncompressedSize;
+      final int table; // index of the code table
+      final byte[] digest; // digest of the uncompressed file
+
+      Entry(String name, long offset, long compressedSize, long uncompressedSize, int table, byte[] digest) {
+         this.name = name;
+         this.offset = offset;
+         this.compressedSize = compressedSize;
+         this.uncompressedSize = uncompressedSize;
+         this.table = table;
+         this.digest = digest;
+      }
+
+      public String getName() {
+         return name;
+      }
+
+      public long getCompressedSize() {
+         return compressedSize;
+      }
+
+      public long getUncompressedSize() {
+         return uncompressedSize;
+      }
+
+      public byte[] getDigest() {
+         return digest;
+      }
+   }
+
+   /**
+    * Open an archive and read its central directory
+    *
+    * @param archive The archive file
+    * @throws IOException if the file can't be read or is not an archive
+    */
+   public HuffmanArchive(Path archive) throws IOException {
+      channel = FileChannel.open(archive, StandardOpenOption.READ);
+      try {
+         long size = channel.size();
+         if (size < HEADER_SIZE + TRAILER_SIZE)
+            throw new IOException(archive + " is not a Huffman archive");
+         ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_SIZE, TRAILER_SIZE);
+         long directoryOffset = trailer.getLong();
+         if (trailer.getInt() != MAGIC || directoryOffset < HEADER_SIZE || directoryOffset > size - TRAILER_SIZE)
+            throw new IOException(archive + " is not a Huffman archive");
+         readDirectory(channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset,
+               size - TRAILER_SIZE - directoryOffset), directoryOffset);
+      } catch (BufferUnderflowException e) {
+         channel.close();
+         throw new IOException("Corrupt archive, the central directory ends early", e);
+      } catch (IOException | RuntimeException e) {
+         channel.close();
+         throw e;
+      }
+   }
+
+   /**
+    * Parse the central directory, checking each count and offset against the
+    * archive before using it
+    */
+   private void readDirectory(ByteBuffer directory, long directoryOffset) throws IOException {
+      hashAlgorithm = readString(directory);
+      tables = new Table[readCount(directory)];
+      for (int i = 0; i < tables.length; i++)
+         tables[i] = readTable(directory);
+      int count = readCount(directory);
+      for (int i = 0; i < count; i++) {
+         String name = readString(directory);
+         long offset = directory.getLong();
+         long compressedSize = directory.getLong();
+         long uncompressedSize = directory.getLong();
+         int table = directory.getInt();
+         byte[] digest = new byte[readCount(directory)];
+         directory.get(digest);
+         if (table < 0 || table >= tables.length)
+            throw new IOException("Entry " + name + " has no code table");
+         if (offset < HEADER_SIZE || compressedSize < 0 || compressedSize > directoryOffset - offset
+               || uncompressedSize < 0)
+            throw new IOException("Corrupt archive, entry " + name + " is outside the archive");
+         Entry entry = new Entry(name, offset, compressedSize, uncompressedSize, table, digest);
+         entries.add(entry);
+         entriesByName.put(name, entry);
+      }
+   }
+
+   /**
+    * Get the hash algorithm used for the entry digests
+    *
+    * @return The hash algorithm
+    */
+   public String getHashAlgorithm() {
+      return hashAlgorithm;
+   }
+
+   /**
+    * Get the number of code tables, 1 if the entries share a table
+    *
+    * @return The number of tables
+    */
+   public int getTableCount() {
+      return tables.length;
+   }
+
+   /**
+    * Get the entries in the order they were added
+    *
+    * @return The entries
+    */
+   public List<Entry> getEntries() {
+      return Collections.unmodifiableList(entries);
+   }
+
+   /**
+    * Look up an entry
+    *
+    * @param name The entry name
+    * @return The entry, null if there is none with that name
+    */
+   public Entry getEntry(String name) {
+      return entriesByName.get(name);
+   }
+
+   /**
+    * Decompress one entry
+    *
+    * Only the entry's own bytes are read from the archive.
+    *
+    * @param entry The entry
+    * @param out   Where to write the decompressed bytes, should be buffered
+    * @return true if the digest matches
+    * @throws IOException
+    */
+   public boolean extract(Entry entry, OutputStream out) throws IOException {
+      MessageDigest md;
+      try {
+         md = MessageDigest.getInstance(hashAlgorithm);
+      } catch (NoSuchAlgorithmException e) {
+         throw new IOException(e.getMessage(), e);
+      }
+      Table table = tables[entry.table];
+      ByteBuffer bits = channel.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.compressedSize);
+      table.getDecodeTree().decode(bits, entry.uncompressedSize, table.transform, b -> {
+         out.write(b);
+         md.update((byte) b);
+      });
+      return MessageDigest.isEqual(md.digest(), entry.digest);
+   }
+
+   @Override
+   public void close() throws IOException {
+      channel.close();
+   }
+
+   /**
+    * Write a code table in the central directory format
+    *
+    * Each code is written as its length in one byte, then its bits packed into
+    * whole bytes. Huffman codes from int counts are well under 255 bits.
+    */
+   static void writeTable(DataOutputStream out, Table table) throws IOException {
+      out.writeBoolean(table.transform != null);
+      if (table.transform != null) {
+         out.writeBoolean(table.transform.runLength);
+         out.writeInt(table.transform.pairs.length);
+         for (int pair : table.transform.pairs)
+            out.writeInt(pair);
+      }
+      out.writeInt(table.codes.length);
+      for (String code : table.codes) {
+         int length = code == null ? 0 : code.length();
+         out.writeByte(length);
+         for (int i = 0; i < length; i += 8) {
+            int b = 0;
+            for (int j = i; j < i + 8; j++)
+               b = (b << 1) | (j < length && code.charAt(j) == '1' ? 1 : 0);
+            out.writeByte(b);
+         }
+      }
+   }
+
+   /**
+    * Read a code table written by writeTable
+    *
+    * The number of codes must match the alphabet, so every symbol a code
+    * decodes to can be expanded. The codes themselves are checked when the
+    * DecodeTree is built.
+    */
+   private static Table readTable(ByteBuffer in) throws IOException {
+      SymbolTransform transform = null;
+      if (in.get() != 0) {
+         boolean runLength = in.get() != 0;
+         int count = in.getInt();
+         if (count < 0 || count > SymbolTransform.MAX_PAIRS)
+            throw new IOException("Corrupt archive, bad number of pairs " + count);
+         int[] pairs = new int[count];
+         for (int i = 0; i < pairs.length; i++) {
+            pairs[i] = in.getInt();
+            if (pairs[i] < 0 || pairs[i] > 0xFFFF)
+               throw new IOException("Corrupt archive, bad pair " + pairs[i]);
+         }
+         transform = new SymbolTransform(runLength, pairs);
+      }
+      int count = in.getInt();
+      if (count != (transform == null ? SymbolTransform.SIZE : transform.alphabetSize()))
+         throw new IOException("Corrupt archive, " + count + " codes don't match the alphabet");
+      String[] codes = new String[count];
+      for (int symbol = 0; symbol < codes.length; symbol++) {
+         int length = in.get() & 0xFF;
+         if (length == 0)
+            continue;
+         StringBuilder code = new StringBuilder(length);
+         for (int i = 0; i < length; i += 8) {
+            int b = in.get();
+            for (int j = 7; j >= 0 && code.length() < length; j--)
+               code.append((b >> j) & 1);
+         }
+         codes[symbol] = code.toString();
+      }
+      return new Table(codes, transform);
+   }
+
+   /** Write a string as a length and UTF-8 bytes */
+   static void writeString(DataOutputStream out, String s) throws IOException {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   /** Read a count, which can't be more than the bytes left */
+   private static int readCount(ByteBuffer in) throws IOException {
+      int count = in.getInt();
+      if (count < 0 || count > in.remaining())
+         throw new IOException("Corrupt archive, bad count " + count);
+      return count;
+   }
+
+   /** Read a string written by writeString */
+   private static String readString(ByteBuffer in) throws IOException {
+      byte[] bytes = new byte[readCount(in)];
+      in.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+}
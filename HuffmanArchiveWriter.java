@@ -0,0 +1,168 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes an archive of many Huffman compressed files, see HuffmanArchive for
+ * the layout
+ *
+ * Each file is compressed with HuffmanCompress, but only its bit stream goes
+ * in the archive. The codes go in the central directory, either one table per
+ * file or a single table shared by all of them.
+ *
+ */
+public class HuffmanArchiveWriter {
+   private static final int SIZE = 256;
+
+   private final String hashAlgorithm;
+   private final boolean sharedCodes;
+   private final boolean runLength;
+   private final int pairCount;
+   private final Map<String, Path> files = new LinkedHashMap<>();
+
+   /**
+    * Create a writer
+    *
+    * @param hashAlgorithm The hash algorithm for the entry digests
+    * @param sharedCodes   true to use one code table for all entries, built
+    *                      from all of them together. Not used with runLength
+    *                      or pairCount
+    * @param runLength     true to code runs as single symbols
+    * @param pairCount     Number of byte pair symbols
+    */
+   public HuffmanArchiveWriter(String hashAlgorithm, boolean sharedCodes, boolean runLength, int pairCount) {
+      if (sharedCodes && (runLength || pairCount > 0))
+         throw new IllegalArgumentException("Shared codes only work with the single byte alphabet");
+      this.hashAlgorithm = hashAlgorithm;
+      this.sharedCodes = sharedCodes;
+      this.runLength = runLength;
+      this.pairCount = pairCount;
+   }
+
+   /**
+    * Add a file
+    *
+    * @param name The name of the entry in the archive
+    * @param file The file to compress
+    */
+   public void add(String name, Path file) {
+      if (files.put(name, file) != null)
+         throw new IllegalArgumentException("Duplicate entry " + name);
+   }
+
+   /**
+    * Compress the files and write the archive
+    *
+    * Only one file is compressed at a time, and only its table and entry are
+    * kept. Every file is read twice, once to build the codes and once to encode
+    * it, and with shared codes once more first to add up the counts. If a file
+    * fails, the partial archive is deleted.
+    *
+    * @param archive The archive file
+    * @throws IOException naming the file that failed
+    */
+   public void write(Path archive) throws IOException {
+      boolean written = false;
+      try {
+         writeArchive(archive);
+         written = true;
+      } finally {
+         if (!written)
+            Files.deleteIfExists(archive);
+      }
+   }
+
+   private void writeArchive(Path archive) throws IOException {
+      Logger.getLogger(HuffmanCompress.class.getName()).setLevel(Level.WARNING); // Per file info is too noisy
+      List<HuffmanArchive.Table> tables = new ArrayList<>();
+      String[] shared = null;
+      if (sharedCodes) {
+         long[] counts = new long[SIZE]; // The total of all files can be more than an int holds
+         for (Path file : files.values()) {
+            int[] c = compressor(file).getCodeCounts(); // Only the counts are kept
+            for (int i = 0; i < SIZE; i++)
+               counts[i] += c[i];
+         }
+         Tree tree = HuffmanCompress.getHuffmanTree(scale(counts));
+         shared = tree == null ? new String[SIZE] : HuffmanCompress.getCode(tree.root, SIZE);
+         tables.add(new HuffmanArchive.Table(shared, null));
+      }
+
+      try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(archive.toFile())))) {
+         out.writeInt(HuffmanArchive.MAGIC);
+         out.writeInt(HuffmanArchive.VERSION);
+         long offset = HuffmanArchive.HEADER_SIZE;
+
+         List<HuffmanArchive.Entry> entries = new ArrayList<>();
+         for (Map.Entry<String, Path> file : files.entrySet()) {
+            HuffmanCompress h = compressor(file.getValue());
+            if (sharedCodes) {
+               h.useSharedCodes(shared);
+            } else {
+               SymbolTransform transform = h.getTransform();
+               if (transform != null) // A copy without the 256 KB pair lookup the encoder builds
+                  transform = new SymbolTransform(transform.runLength, transform.pairs);
+               tables.add(new HuffmanArchive.Table(h.getCodes(), transform));
+            }
+            BitOutputStream bitOut = new BitOutputStream(out); // Not closed, that would close the archive
+            h.encodeTo(bitOut, 0);
+            bitOut.flush();
+            entries.add(new HuffmanArchive.Entry(file.getKey(), offset, bitOut.getBytesWritten(),
+                  h.getUncompressedSize(), tables.size() - 1, h.digest));
+            offset += bitOut.getBytesWritten();
+         }
+
+         long directoryOffset = offset;
+         HuffmanArchive.writeString(out, hashAlgorithm);
+         out.writeInt(tables.size());
+         for (HuffmanArchive.Table table : tables)
+            HuffmanArchive.writeTable(out, table);
+         out.writeInt(entries.size());
+         for (HuffmanArchive.Entry entry : entries) {
+            HuffmanArchive.writeString(out, entry.name);
+            out.writeLong(entry.offset);
+            out.writeLong(entry.compressedSize);
+            out.writeLong(entry.uncompressedSize);
+            out.writeInt(entry.table);
+            out.writeInt(entry.digest.length);
+            out.write(entry.digest);
+         }
+         out.writeLong(directoryOffset);
+         out.writeInt(HuffmanArchive.MAGIC);
+      }
+   }
+
+   /**
+    * Scale counts down so their total fits the int weights of the Huffman tree.
+    * A count that isn't 0 stays at least 1, so every byte still gets a code
+    */
+   static int[] scale(long[] counts) {
+      long total = 0;
+      for (long count : counts)
+         total += count;
+      long divisor = total / (Integer.MAX_VALUE - counts.length) + 1; // Leave room for the counts rounded up to 1
+      int[] scaled = new int[counts.length];
+      for (int i = 0; i < counts.length; i++)
+         scaled[i] = counts[i] == 0 ? 0 : (int) Math.max(1, counts[i] / divisor);
+      return scaled;
+   }
+
+   /** Read a file and build its codes */
+   private HuffmanCompress compressor(Path file) throws IOException {
+      try {
+         return new HuffmanCompress(file.toString(), null, hashAlgorithm, runLength, pairCount);
+      } catch (IOException e) {
+         throw new IOException(file + ": " + e.getMessage(), e);
+      }
+   }
+}
@@ -0,0 +1,314 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Compress or decompress many files in one JVM
+ *
+ * The files are handled concurrently, with at most threads files in progress
+ * at a time. Virtual threads are used when the JVM has them (Java 21+), so
+ * threads blocked on I/O don't hold a platform thread, otherwise a pool of
+ * platform threads is used.
+ *
+ */
+public class HuffmanBatch {
+   static final String EXTENSION = ".huf"; // Added to compressed file names
+   private static final String RESTORED_EXTENSION = ".out"; // Added if a compressed file has no EXTENSION
+
+   private final boolean compress;
+   private final int threads;
+   private final String hashAlgorithm;
+   private final boolean runLength;
+   private final int pairCount;
+   private int streams = 1; // Interleaved bit streams per compressed file
+
+   private final AtomicInteger filesDone = new AtomicInteger();
+   private final AtomicInteger filesFailed = new AtomicInteger();
+   private final AtomicLong bytesIn = new AtomicLong();
+   private final AtomicLong bytesOut = new AtomicLong();
+   private volatile long elapsedNanos;
+
+   /**
+    * Create a batch
+    *
+    * @param compress      true to compress, false to decompress
+    * @param threads       Maximum number of files in progress at once
+    * @param hashAlgorithm Hash algorithm for compression, ignored when
+    *                      decompressing
+    * @param runLength     true to code runs as single symbols when compressing
+    * @param pairCount     Number of byte pair symbols when compressing
+    */
+   public HuffmanBatch(boolean compress, int threads, String hashAlgorithm, boolean runLength, int pairCount) {
+      this.compress = compress;
+      this.threads = Math.max(1, threads);
+      this.hashAlgorithm = hashAlgorithm;
+      this.runLength = runLength;
+      this.pairCount = pairCount;
+   }
+
+   /**
+    * Set the number of interleaved bit streams when compressing, see
+    * HuffmanCompress.setStreams
+    *
+    * @param streams 1 for a single stream, or HuffmanHeader.STREAMS
+    */
+   public void setStreams(int streams) {
+      if (streams != 1 && streams != HuffmanHeader.STREAMS)
+         throw new IllegalArgumentException("Number of streams must be 1 or " + HuffmanHeader.STREAMS);
+      this.streams = streams;
+   }
+
+   /**
+    * Find the files to process
+    *
+    * The source is a directory (every file below it), a glob such as
+    * logs/*.txt or logs/**.log, or @listfile with one path per line. A
+    * relative path in a list keeps its directories under the output directory,
+    * an absolute one or one starting with .. keeps only its name.
+    *
+    * @param source The directory, glob or @listfile
+    * @return Each input file mapped to its path relative to the output directory
+    * @throws IOException
+    */
+   public static Map<Path, Path> findInputs(String source) throws IOException {
+      Map<Path, Path> inputs = new LinkedHashMap<>();
+      if (source.startsWith("@")) { // A list of files
+         for (String line : Files.readAllLines(Paths.get(source.substring(1)))) {
+            if (!line.isBlank()) {
+               Path file = Paths.get(line.trim());
+               Path relative = file.normalize();
+               if (relative.isAbsolute() || relative.startsWith("..") || relative.getFileName() == null)
+                  relative = file.getFileName(); // Can't go under the output directory as it is
+               inputs.put(file, relative);
+            }
+         }
+         return inputs;
+      }
+
+      Path base = Paths.get(source);
+      PathMatcher matcher = null;
+      if (!Files.isDirectory(base)) { // A glob, walk from the part before the first wildcard
+         int wildcard = indexOfWildcard(source);
+         if (wildcard < 0) {
+            inputs.put(base, base.getFileName());
+            return inputs;
+         }
+         int slash = source.lastIndexOf('/', wildcard);
+         base = Paths.get(slash < 0 ? "." : source.substring(0, slash + 1));
+         matcher = FileSystems.getDefault().getPathMatcher("glob:" + (slash < 0 ? source : source.substring(slash + 1)));
+      }
+
+      final Path root = base;
+      final PathMatcher glob = matcher;
+      try (Stream<Path> files = Files.walk(root)) {
+         files.filter(Files::isRegularFile)
+               .filter(f -> glob == null || glob.matches(root.relativize(f)))
+               .sorted()
+               .forEach(f -> inputs.put(f, root.relativize(f)));
+      }
+      return inputs;
+   }
+
+   /** Position of the first glob character, -1 if there is none */
+   private static int indexOfWildcard(String s) {
+      for (int i = 0; i < s.length(); i++) {
+         if ("*?[{".indexOf(s.charAt(i)) >= 0)
+            return i;
+      }
+      return -1;
+   }
+
+   /**
+    * Process every file, returns when all of them are done
+    *
+    * If two inputs would have the same output file, only the first one is
+    * processed and the others are reported as failed.
+    *
+    * @param inputs Files to process, as returned by findInputs()
+    * @param outDir Directory for the results, created if needed
+    * @param log    Where to report failures
+    * @throws InterruptedException
+    */
+   public void run(Map<Path, Path> inputs, Path outDir, PrintStream log) throws InterruptedException {
+      Logger.getLogger(HuffmanCompress.class.getName()).setLevel(Level.WARNING); // Per file info is too noisy
+      Semaphore permits = new Semaphore(threads);
+      long start = System.nanoTime();
+      ExecutorService executor = newExecutor();
+      Map<Path, Path> targets = new HashMap<>(); // output -> the input writing it
+      try {
+         for (Map.Entry<Path, Path> entry : inputs.entrySet()) {
+            Path target = outDir.resolve(outputName(entry.getValue())).normalize();
+            Path first = targets.putIfAbsent(target, entry.getKey());
+            if (first != null) {
+               log.println(entry.getKey() + ": same output file " + target + " as " + first);
+               filesFailed.incrementAndGet();
+               filesDone.incrementAndGet();
+               continue;
+            }
+            permits.acquire(); // Don't queue more work than can run
+            executor.execute(() -> {
+               try {
+                  if (!processFile(entry.getKey(), target, log))
+                     filesFailed.incrementAndGet();
+               } catch (IOException | RuntimeException e) {
+                  filesFailed.incrementAndGet();
+                  log.println(entry.getKey() + ": " + e.getMessage());
+               } finally {
+                  filesDone.incrementAndGet();
+                  permits.release();
+               }
+            });
+         }
+      } finally {
+         executor.shutdown();
+         executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+         elapsedNanos = System.nanoTime() - start;
+      }
+   }
+
+   /**
+    * Compress or decompress one file
+    *
+    * The output file is created first, which fails if it already exists, so
+    * nothing is ever overwritten. It is deleted again if the file fails.
+    *
+    * @return true if the file was processed
+    */
+   private boolean processFile(Path in, Path out, PrintStream log) throws IOException {
+      if (!Files.isRegularFile(in) || !Files.isReadable(in)) {
+         log.println("File " + in + " is not a readable file");
+         return false;
+      }
+      if (out.getParent() != null)
+         Files.createDirectories(out.getParent());
+      try {
+         Files.createFile(out); // Atomic, only one of any tasks racing for the name gets it
+      } catch (FileAlreadyExistsException e) {
+         log.println("File " + out + " already exists");
+         return false;
+      }
+
+      boolean processed = false;
+      try {
+         HuffmanMetrics metrics;
+         if (compress) {
+            HuffmanCompress h = new HuffmanCompress(in.toString(), out.toString(), hashAlgorithm, runLength,
+                  pairCount);
+            h.setStreams(streams);
+            h.writeCompressed();
+            metrics = h.getMetrics();
+         } else {
+            HuffmanDecompress h = new HuffmanDecompress(in.toString(), out.toString());
+            if (!h.write()) {
+               log.println("File " + in + " not decompressed or not a valid Huffman compressed file");
+               return false;
+            }
+            metrics = h.getMetrics();
+         }
+         bytesIn.addAndGet(metrics.getBytesIn());
+         bytesOut.addAndGet(metrics.getBytesOut());
+         processed = true;
+         return true;
+      } finally {
+         if (!processed)
+            Files.deleteIfExists(out); // Only a partial or unverified file
+      }
+   }
+
+   /** Name of the output file for an input path */
+   private Path outputName(Path relative) {
+      String name = relative.getFileName().toString();
+      if (compress)
+         name += EXTENSION;
+      else if (name.endsWith(EXTENSION) && name.length() > EXTENSION.length())
+         name = name.substring(0, name.length() - EXTENSION.length());
+      else
+         name += RESTORED_EXTENSION;
+      return relative.resolveSibling(name);
+   }
+
+   /**
+    * Executor with a virtual thread per task if available (Java 21+), otherwise
+    * a pool of platform threads. Either way run() limits the tasks in progress.
+    */
+   private static ExecutorService newExecutor() {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+         return Executors.newCachedThreadPool();
+      }
+   }
+
+   /**
+    * Run from a command line tool, printing a summary and exiting on errors
+    *
+    * @param source directory, glob, or @listfile
+    * @param outDir directory for the results
+    */
+   public void runCommandLine(String source, String outDir) {
+      Path out = Paths.get(outDir);
+      if (Files.exists(out) && !Files.isDirectory(out)) {
+         System.out.println("File " + outDir + " is not a directory");
+         System.exit(1);
+      }
+      try {
+         Map<Path, Path> inputs = findInputs(source);
+         if (inputs.isEmpty()) {
+            System.out.println("No files found in " + source);
+            System.exit(1);
+         }
+         run(inputs, out, System.out);
+      } catch (IOException | InterruptedException e) {
+         System.out.println(e.getMessage());
+         System.exit(1);
+      }
+      System.out.print(this);
+      if (getFilesFailed() > 0)
+         System.exit(1);
+   }
+
+   /** Number of files finished, including failures. Safe to poll during run() */
+   public int getFilesDone() {
+      return filesDone.get();
+   }
+
+   /** Number of files that could not be processed */
+   public int getFilesFailed() {
+      return filesFailed.get();
+   }
+
+   /**
+    * Uncompressed bytes handled per second across all files, in MB
+    */
+   public double getThroughputMBps() {
+      long uncompressed = compress ? bytesIn.get() : bytesOut.get();
+      return elapsedNanos == 0 ? 0 : (uncompressed / (1024.0 * 1024.0)) / (elapsedNanos / 1e9);
+   }
+
+   /**
+    * Summary for printing
+    */
+   @Override
+   public String toString() {
+      return String.format("Files: %d (%d failed)%nBytes in: %d%nBytes out: %d%nElapsed: %.1f ms%nThroughput: %.2f MB/s%n",
+            getFilesDone(), getFilesFailed(), bytesIn.get(), bytesOut.get(), elapsedNanos / 1e6,
+            getThroughputMBps());
+   }
+}
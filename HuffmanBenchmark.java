@@ -0,0 +1,283 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Benchmarks for the compression and decompression stages
+ *
+ * Generates synthetic files and times each stage on its own and end to end.
+ * Reports throughput in MB/s of uncompressed data, bytes allocated per
+ * operation by the benchmark thread, GC collections, and the compression ratio.
+ * The "histogram" row times a new HuffmanCompress per call, which counts the
+ * bytes and builds the codes from them, the tree is only a small part of that.
+ *
+ * Each stage is warmed up until it has processed WARMUP_BYTES or run for
+ * WARMUP_NANOS, whichever comes first, so small files get as many calls as the
+ * JIT needs and slow stages don't take forever. The timed calls then run for
+ * at least MEASURE_NANOS as well as the given number of iterations, so one
+ * hiccup doesn't decide the result for a small file.
+ *
+ * Usage: java HuffmanBenchmark [sizeKB] [iterations]
+ */
+public class HuffmanBenchmark {
+   private static final long WARMUP_BYTES = 32 * 1024 * 1024; // Uncompressed bytes run before timing starts
+   private static final long WARMUP_NANOS = 2_000_000_000L; // Unless warming up takes longer than this
+   private static final long MEASURE_NANOS = 500_000_000L; // Shortest time measured for each stage
+   private static final int ALLOCATION_NOISE = 16; // Bytes per op the allocation counter itself can add
+   private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+   private static final long SEED = 76; // Same corpora every run
+   private static final String HASH = "SHA-256";
+
+   private static final String[] WORDS = { "the", "of", "and", "to", "a", "in", "is", "it", "that", "was",
+         "for", "on", "are", "with", "as", "file", "tree", "code", "bits", "compress", "huffman", "roses",
+         "violets", "blue", "red", "decompress", "frequency", "heap", "node", "weight" };
+
+   /**
+    * A stage to be timed
+    */
+   private interface Stage {
+      void run() throws IOException;
+   }
+
+   public static void main(String[] args) throws IOException {
+      int sizeKB = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+      int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+      Logger.getLogger(HuffmanCompress.class.getName()).setLevel(Level.WARNING); // Keep the table readable
+
+      File dir = Files.createTempDirectory("huffbench").toFile();
+      try {
+         System.out.printf("%-10s %-22s %10s %14s %6s %8s%n", "Corpus", "Stage", "MB/s", "alloc B/op", "GCs",
+               "ratio");
+         String[] corpora = { "uniform", "english", "skewed", "runs" };
+         for (String corpus : corpora) {
+            File in = new File(dir, corpus + ".txt");
+            Files.write(in.toPath(), generate(corpus, sizeKB * 1024));
+            runCorpus(corpus, in, dir, iterations);
+         }
+      } finally {
+         File[] files = dir.listFiles();
+         if (files != null)
+            for (File f : files)
+               f.delete();
+         dir.delete();
+      }
+   }
+
+   /**
+    * Run all the stages against one corpus
+    */
+   private static void runCorpus(String corpus, File in, File dir, int iterations) throws IOException {
+      String inName = in.getPath();
+      File out = new File(dir, corpus + ".huf");
+      File restored = new File(dir, corpus + ".out");
+      long size = in.length();
+
+      HuffmanCompress h = new HuffmanCompress(inName, out.getPath(), HASH);
+      int[] counts = h.getCodeCounts();
+      String[] codes = h.getCodes();
+      byte[] data = Files.readAllBytes(in.toPath());
+      File bits = new File(dir, corpus + ".bits");
+
+      // A fresh instance each time, counting again would reset h's digest and size
+      report(corpus, "histogram", size, iterations, Double.NaN, () -> new HuffmanCompress(inName, null, HASH));
+      report(corpus, "tree build", size, iterations, Double.NaN, () -> HuffmanCompress.getHuffmanTree(counts));
+      report(corpus, "writeBit", size, iterations, Double.NaN, () -> {
+         try (BitOutputStream bitOut = new BitOutputStream(bits)) {
+            for (byte b : data)
+               bitOut.writeBit(codes[b & 0xFF]);
+         }
+      });
+
+      h.writeCompressed();
+      double ratio = (double) out.length() / size;
+      report(corpus, "decode", size, iterations, ratio, () -> {
+         restored.delete();
+         new HuffmanDecompress(out.getPath(), restored.getPath()).write();
+      });
+
+      HuffmanCache headers = new HuffmanCache(16, 0);
+      report(corpus, "decode, cached header", size, iterations, ratio, () -> {
+         restored.delete();
+         new HuffmanDecompress(out.getPath(), restored.getPath(), headers).write();
+      });
+      HuffmanCache contents = new HuffmanCache(16, 2 * size);
+      report(corpus, "decode, cached data", size, iterations, ratio, () -> {
+         restored.delete();
+         new HuffmanDecompress(out.getPath(), restored.getPath(), contents).write();
+      });
+      if (Files.mismatch(in.toPath(), restored.toPath()) != -1)
+         System.out.println("  " + corpus + ": cached output does not match the original");
+
+      reportDecoder(corpus, "reusable decoder", out, restored, size, iterations, ratio);
+
+      out.delete();
+      HuffmanCompress interleaved = new HuffmanCompress(inName, out.getPath(), HASH);
+      interleaved.setStreams(HuffmanHeader.STREAMS);
+      interleaved.writeCompressed();
+      reportDecoder(corpus, "4 stream decoder", out, restored, size, iterations, (double) out.length() / size);
+      if (Files.mismatch(in.toPath(), restored.toPath()) != -1)
+         System.out.println("  " + corpus + ": 4 stream decoder output does not match the original");
+      out.delete();
+      h.writeCompressed();
+
+      report(corpus, "end to end", size, iterations, ratio, () -> {
+         out.delete();
+         restored.delete();
+         new HuffmanCompress(inName, out.getPath(), HASH).writeCompressed();
+         new HuffmanDecompress(out.getPath(), restored.getPath()).write();
+      });
+
+      out.delete();
+      new HuffmanCompress(inName, out.getPath(), HASH, true, 256).writeCompressed();
+      double transformRatio = (double) out.length() / size;
+      report(corpus, "end to end rle+pairs", size, iterations, transformRatio, () -> {
+         out.delete();
+         restored.delete();
+         new HuffmanCompress(inName, out.getPath(), HASH, true, 256).writeCompressed();
+         new HuffmanDecompress(out.getPath(), restored.getPath()).write();
+      });
+
+      if (Files.mismatch(in.toPath(), restored.toPath()) != -1)
+         System.out.println("  " + corpus + ": decompressed file does not match the original");
+      bits.delete();
+      out.delete();
+      restored.delete();
+   }
+
+   /**
+    * Time a HuffmanDecoder kept across calls, and check it doesn't allocate
+    */
+   private static void reportDecoder(String corpus, String name, File out, File restored, long size,
+         int iterations, double ratio) throws IOException {
+      try (HuffmanDecoder decoder = new HuffmanDecoder();
+            FileChannel compressed = FileChannel.open(out.toPath(), StandardOpenOption.READ);
+            FileChannel decoded = FileChannel.open(restored.toPath(), StandardOpenOption.WRITE,
+                  StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+         Stage decode = () -> {
+            compressed.position(0);
+            decoded.position(0);
+            if (!decoder.decompress(compressed, decoded))
+               throw new IOException(name + " digest mismatch");
+         };
+         long allocated = report(corpus, name, size, iterations, ratio, decode);
+         if (allocated > ALLOCATION_NOISE) // After warmup it should only use its pooled direct buffers
+            System.out.println("  " + corpus + ": " + name + " allocated " + allocated + " bytes per call");
+      }
+   }
+
+   /**
+    * Warm up, then time a stage and print one line of results
+    *
+    * Warms up for WARMUP_BYTES or WARMUP_NANOS, whichever comes first, and at
+    * least one call.
+    *
+    * @param size       Number of uncompressed bytes processed per operation
+    * @param iterations Fewest calls to time, more are made to fill MEASURE_NANOS
+    * @param ratio      The compression ratio to print, NaN if not applicable
+    * @return Bytes allocated per operation by this thread after warmup
+    */
+   private static long report(String corpus, String name, long size, int iterations, double ratio, Stage stage)
+         throws IOException {
+      PrintStream console = System.out;
+      System.setOut(new PrintStream(PrintStream.nullOutputStream())); // Silence the decompressor
+      try {
+         long warmupStart = System.nanoTime();
+         for (long warmed = 0; warmed < WARMUP_BYTES
+               && System.nanoTime() - warmupStart < WARMUP_NANOS; warmed += Math.max(size, 1))
+            stage.run();
+
+         long gcs = gcCount();
+         long allocated = allocatedBytes();
+         long start = System.nanoTime();
+         long elapsed = 0;
+         int calls = 0;
+         while (calls < iterations || elapsed < MEASURE_NANOS) {
+            stage.run();
+            calls++;
+            elapsed = System.nanoTime() - start;
+         }
+         allocated = allocatedBytes() - allocated;
+         gcs = gcCount() - gcs;
+
+         double mbPerSecond = (size * (double) calls / (1024 * 1024)) / (elapsed / 1e9);
+         console.printf("%-10s %-22s %10.2f %14d %6d %8s%n", corpus, name, mbPerSecond, allocated / calls, gcs,
+               Double.isNaN(ratio) ? "" : String.format("%.3f", ratio));
+         return allocated / calls;
+      } finally {
+         System.setOut(console);
+      }
+   }
+
+   /**
+    * Bytes allocated by this thread so far, -1 if the JVM can't tell
+    */
+   private static long allocatedBytes() {
+      if (THREADS instanceof com.sun.management.ThreadMXBean)
+         return ((com.sun.management.ThreadMXBean) THREADS).getCurrentThreadAllocatedBytes();
+      return -1;
+   }
+
+   /**
+    * Total number of collections across all collectors
+    */
+   private static long gcCount() {
+      return ManagementFactory.getGarbageCollectorMXBeans().stream()
+            .mapToLong(GarbageCollectorMXBean::getCollectionCount)
+            .filter(c -> c >= 0)
+            .sum();
+   }
+
+   /**
+    * Generate a synthetic corpus
+    *
+    * @param corpus uniform, english, skewed or runs
+    * @param size   Number of bytes to generate
+    * @return The corpus
+    */
+   static byte[] generate(String corpus, int size) {
+      Random random = new Random(SEED);
+      byte[] data = new byte[size];
+      int i = 0;
+      switch (corpus) {
+         case "uniform": // Every byte equally likely, Huffman can't do much
+            random.nextBytes(data);
+            break;
+         case "english": // Words picked with a Zipf-like bias
+            while (i < size) {
+               String word = WORDS[(int) (WORDS.length * Math.pow(random.nextDouble(), 2.5))];
+               for (int j = 0; j < word.length() && i < size; j++)
+                  data[i++] = (byte) word.charAt(j);
+               if (i < size)
+                  data[i++] = (byte) (random.nextInt(12) == 0 ? '\n' : ' ');
+            }
+            break;
+         case "skewed": // Geometric distribution over the byte values
+            while (i < size) {
+               int b = 0;
+               while (b < 255 && random.nextInt(4) != 0)
+                  b++;
+               data[i++] = (byte) b;
+            }
+            break;
+         case "runs": // Long runs of a few values
+            while (i < size) {
+               byte b = (byte) ('a' + random.nextInt(4));
+               int run = 1 + random.nextInt(200);
+               for (int j = 0; j < run && i < size; j++)
+                  data[i++] = b;
+            }
+            break;
+         default:
+            throw new IllegalArgumentException("Unknown corpus " + corpus);
+      }
+      return data;
+   }
+}
@@ -0,0 +1,215 @@
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache for HuffmanDecompress, shared by any number of decompressions
+ *
+ * Keeps the parsed header of recently used compressed files (and the decode
+ * map of files from older versions), so they aren't deserialized and rebuilt
+ * on every call. It can also keep the
+ * decompressed contents of small files, up to a total byte budget, so a repeat
+ * read skips decoding too. Both are evicted least recently used first.
+ *
+ * A file is identified by its path, modification time and size. The time can
+ * be too coarse to tell apart two writes of the same size, so a cached header
+ * is only used if the file still starts with exactly the same header bytes.
+ * The header holds the size and digest of the contents, and decompressed
+ * contents are keyed by that digest as well, so they always match the file's
+ * current header.
+ *
+ */
+public class HuffmanCache {
+   /**
+    * What is kept for each compressed file
+    */
+   static class CachedHeader {
+      final HuffmanHeader header;
+      final Map<String, Integer> codeMap; // code -> symbol, read only once cached. null if not built
+      private final byte[] headerBytes; // the serialized header, the data starts after it
+
+      CachedHeader(HuffmanHeader header, Map<String, Integer> codeMap, byte[] headerBytes) {
+         this.header = header;
+         this.codeMap = codeMap;
+         this.headerBytes = headerBytes;
+      }
+
+      /**
+       * Check that a file still starts with this header
+       *
+       * @param channel The file, at its start. Left just past the header if it
+       *                matches
+       */
+      private boolean isHeaderOf(FileChannel channel) throws IOException {
+         ByteBuffer start = ByteBuffer.allocate(headerBytes.length);
+         while (start.hasRemaining())
+            if (channel.read(start) < 0)
+               return false;
+         return Arrays.equals(start.array(), headerBytes);
+      }
+   }
+
+   private final int maxHeaders;
+   private final long maxDecodedBytes;
+   private long decodedBytes = 0; // Size of everything in decoded
+
+   private final LinkedHashMap<String, CachedHeader> headers;
+   private final LinkedHashMap<String, byte[]> decoded = new LinkedHashMap<>(16, 0.75f, true);
+
+   private final AtomicLong headerHits = new AtomicLong();
+   private final AtomicLong headerMisses = new AtomicLong();
+   private final AtomicLong decodedHits = new AtomicLong();
+   private final AtomicLong decodedMisses = new AtomicLong();
+
+   /**
+    * Create a cache
+    *
+    * @param maxHeaders      Maximum number of headers to keep
+    * @param maxDecodedBytes Maximum total size of decompressed contents to
+    *                        keep, 0 to only cache headers
+    */
+   public HuffmanCache(int maxHeaders, long maxDecodedBytes) {
+      this.maxHeaders = maxHeaders;
+      this.maxDecodedBytes = maxDecodedBytes;
+      headers = new LinkedHashMap<>(16, 0.75f, true) { // Access order, eldest is least recently used
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, CachedHeader> eldest) {
+            return size() > HuffmanCache.this.maxHeaders;
+         }
+      };
+   }
+
+   /**
+    * Get the key for a compressed file
+    *
+    * @param fileName The compressed file
+    * @return The key, changes when the file is modified
+    * @throws IOException
+    */
+   static String fileKey(String fileName) throws IOException {
+      File file = new File(fileName);
+      BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+      return file.getCanonicalPath() + "|" + attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) + "|"
+            + attributes.size();
+   }
+
+   /**
+    * Read the serialized header at the start of a file, to cache it
+    *
+    * @param channel The file, its position is not changed
+    * @param length  The length of the header
+    * @return The header bytes
+    * @throws IOException
+    */
+   static byte[] readHeaderBytes(FileChannel channel, long length) throws IOException {
+      ByteBuffer bytes = ByteBuffer.allocate(Math.toIntExact(length));
+      while (bytes.hasRemaining())
+         if (channel.read(bytes, bytes.position()) < 0)
+            throw new IOException("File ended early");
+      return bytes.array();
+   }
+
+   /** Key for the decompressed contents, also includes the digest */
+   private static String decodedKey(String fileKey, byte[] digest) {
+      return fileKey + "|" + String.format("%02X", new BigInteger(1, digest));
+   }
+
+   /**
+    * Get the header of a file, if it is cached and the file still starts with
+    * it
+    *
+    * @param fileKey The key of the file
+    * @param channel The file, at its start. Left just past the header on a hit
+    * @return The header, or null if not cached or the file has changed
+    * @throws IOException
+    */
+   CachedHeader getHeader(String fileKey, FileChannel channel) throws IOException {
+      CachedHeader cached;
+      synchronized (this) {
+         cached = headers.get(fileKey);
+      }
+      if (cached != null && !cached.isHeaderOf(channel)) {
+         cached = null; // Rewritten without changing the key
+         channel.position(0);
+      }
+      (cached == null ? headerMisses : headerHits).incrementAndGet();
+      return cached;
+   }
+
+   synchronized void putHeader(String fileKey, CachedHeader cached) {
+      headers.put(fileKey, cached);
+   }
+
+   /**
+    * Get decompressed contents
+    *
+    * @return The contents, must not be modified, or null if not cached
+    */
+   synchronized byte[] getDecoded(String fileKey, byte[] digest) {
+      byte[] data = decoded.get(decodedKey(fileKey, digest));
+      (data == null ? decodedMisses : decodedHits).incrementAndGet();
+      return data;
+   }
+
+   /**
+    * Keep decompressed contents, evicting others if needed to stay in budget
+    *
+    * @param data Contents whose digest has been verified
+    */
+   synchronized void putDecoded(String fileKey, byte[] digest, byte[] data) {
+      if (data.length > maxDecodedBytes)
+         return;
+      byte[] old = decoded.put(decodedKey(fileKey, digest), data);
+      decodedBytes += data.length - (old == null ? 0 : old.length);
+      var eldest = decoded.entrySet().iterator();
+      while (decodedBytes > maxDecodedBytes) {
+         decodedBytes -= eldest.next().getValue().length;
+         eldest.remove();
+      }
+   }
+
+   /**
+    * Check if a file of this size could be kept, used to skip copying the
+    * output of files that are too big
+    */
+   boolean canHoldDecoded(long size) {
+      return size <= maxDecodedBytes;
+   }
+
+   /** Remove everything */
+   public synchronized void clear() {
+      headers.clear();
+      decoded.clear();
+      decodedBytes = 0;
+   }
+
+   public long getHeaderHits() {
+      return headerHits.get();
+   }
+
+   public long getHeaderMisses() {
+      return headerMisses.get();
+   }
+
+   public long getDecodedHits() {
+      return decodedHits.get();
+   }
+
+   public long getDecodedMisses() {
+      return decodedMisses.get();
+   }
+
+   /** Total size of the decompressed contents being kept */
+   public synchronized long getDecodedBytes() {
+      return decodedBytes;
+   }
+}
@@ -1,18 +1,19 @@
 package HuffmanProject;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.math.BigInteger;
 import java.io.File;
+import java.util.function.LongSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,6 +32,9 @@ public class HuffmanCompress {
   private static final Logger logger = Logger.getLogger(HuffmanCompress.class.getName());
 
   private static final int SIZE = 256;
+  private static final int BUFFER_SIZE = 8192; // Bytes read at a time by the frequency pass
+  private static final int PUBLISH_INTERVAL = 4096; // Bytes encoded between metrics updates
+  private static final int OUTPUT_BUFFER_SIZE = 64 * 1024; // Bytes written to the file at a time
   Tree tree;
   String[] codes;
   int[] codeCounts;
@@ -39,26 +43,72 @@ public class HuffmanCompress {
   long uncompressedSize;
   String hashAlgorithm;
   MessageDigest md = null;
-  long bytesRead = 0L; // Number of bytes read from the file as its compressed. Used to calculate
-  // compression ratio and provide progress during background compression.
+  final HuffmanMetrics metrics; // Bytes read/written and phase times, safe to poll from another
+  // thread to calculate compression ratio and progress during background compression.
 
   byte[] digest = null; // The digest of the file, populated by getCharacterFrequency
 
+  boolean runLength = false; // Add run-length symbols to the alphabet
+  int pairCount = 0; // Maximum number of byte pair symbols to add to the alphabet
+  int[] pairCounts = null; // Byte pair frequencies, populated by getCharacterFrequency if pairCount > 0
+  SymbolTransform transform = null; // The extended alphabet, null if coding single bytes
+  int streams = 1; // Number of interleaved bit streams to write, see HuffmanHeader
+
   /**
    * Constructor for file compression
    * 
    * @param inFileName  file to be compressed
    * @param outFileName compressed file
+   * @throws IOException if the file can't be read or the hash algorithm is not
+   *                     available
+   */
+  public HuffmanCompress(String inFileName, String outFileName, String hashAlgorithm) throws IOException {
+    this(inFileName, outFileName, hashAlgorithm, false, 0);
+  }
+
+  /**
+   * Constructor for file compression with an extended alphabet
+   * 
+   * @param inFileName  file to be compressed
+   * @param outFileName compressed file
+   * @param runLength   true to code runs of a repeated byte as single symbols
+   * @param pairCount   number of the most frequent byte pairs to code as single
+   *                    symbols, 0 for none
+   * @throws IOException if the file can't be read or the hash algorithm is not
+   *                     available
    */
-  public HuffmanCompress(String inFileName, String outFileName, String hashAlgorithm) {
+  public HuffmanCompress(String inFileName, String outFileName, String hashAlgorithm, boolean runLength,
+      int pairCount) throws IOException {
+    this(inFileName, outFileName, hashAlgorithm, runLength, pairCount, new HuffmanMetrics(true));
+  }
 
+  /**
+   * Constructor for file compression that reports to the caller's metrics
+   * 
+   * The constructor reads the whole file to count the bytes, so pass in metrics
+   * (e.g. registered with JMX) to follow the progress of that first pass too.
+   * 
+   * @param inFileName  file to be compressed
+   * @param outFileName compressed file
+   * @param runLength   true to code runs of a repeated byte as single symbols
+   * @param pairCount   number of the most frequent byte pairs to code as single
+   *                    symbols, 0 for none
+   * @param metrics     where to report progress, created with compressing true
+   * @throws IOException if the file can't be read or the hash algorithm is not
+   *                     available
+   */
+  public HuffmanCompress(String inFileName, String outFileName, String hashAlgorithm, boolean runLength,
+      int pairCount, HuffmanMetrics metrics) throws IOException {
+
+    this.metrics = metrics;
     this.inFileName = inFileName;
     this.outFileName = outFileName;
+    this.runLength = runLength;
+    this.pairCount = pairCount;
     try {
       setHashAlgorithm(hashAlgorithm);
     } catch (NoSuchAlgorithmException e) {
-      logger.log(Level.INFO, e.getMessage());
-      System.exit(1);
+      throw new IOException(e.getMessage(), e);
     }
     encode(); // build the Huffman tree and get the codes
   }
@@ -73,6 +123,31 @@ public class HuffmanCompress {
     this.hashAlgorithm = hashAlgorithm;
   }
 
+  /**
+   * Set the number of interleaved bit streams
+   * 
+   * With HuffmanHeader.STREAMS the symbols are split over that many bit
+   * streams, which HuffmanDecoder decodes side by side. Costs a few bytes per
+   * block. Files written this way need HuffmanDecoder, which HuffmanDecompress
+   * uses for them.
+   * 
+   * @param streams 1 for a single stream, or HuffmanHeader.STREAMS
+   */
+  public void setStreams(int streams) {
+    if (streams != 1 && streams != HuffmanHeader.STREAMS)
+      throw new IllegalArgumentException("Number of streams must be 1 or " + HuffmanHeader.STREAMS);
+    this.streams = streams;
+  }
+
+  /**
+   * Return the number of interleaved bit streams
+   * 
+   * @return The number of streams
+   */
+  public int getStreams() {
+    return streams;
+  }
+
   /**
    * Return the hash algorithm
    * 
@@ -116,6 +191,24 @@ public class HuffmanCompress {
     return codeCounts;
   }
 
+  /**
+   * Return the extended alphabet
+   * 
+   * @return The transform, or null if single bytes are coded
+   */
+  public SymbolTransform getTransform() {
+    return transform;
+  }
+
+  /**
+   * Return the metrics for this compression
+   * 
+   * @return The metrics, can be polled while writeCompressed() runs
+   */
+  public HuffmanMetrics getMetrics() {
+    return metrics;
+  }
+
   /**
    * Get the size of the uncompressed file
    */
@@ -151,21 +244,53 @@ public class HuffmanCompress {
    * Encode the file
    * 
    * Reads the file, creates the Huffman tree, and gets the codes
+   * 
+   * @throws IOException
    */
-  private void encode() {
-    // Start a thread to get character frequency concurrently
-    ExecutorService executor = Executors.newSingleThreadExecutor();
-    Future<int[]> frequencyFuture = executor.submit(() -> getCharacterFrequency(inFileName));
-
-    try {
-      codeCounts = frequencyFuture.get(); // Wait for the frequency calculation to complete
-      executor.shutdown(); // Shutdown the executor service
-    } catch (InterruptedException | ExecutionException e) {
-      logger.logp(Level.SEVERE, HuffmanCompress.class.getName(), "encode", "Error encoding the file", e);
+  private void encode() throws IOException {
+    // Counted on the calling thread, a thread per file is too heavy when many
+    // files are compressed at once (see HuffmanBatch)
+    codeCounts = getCharacterFrequency(inFileName);
+
+    if (runLength || pairCount > 0) { // Count the extended symbols instead of the bytes
+      long began = System.nanoTime();
+      transform = SymbolTransform.choose(runLength, pairCount, codeCounts, pairCounts);
+      pairCounts = null;
+      int[] symbolCounts = getSymbolFrequency(inFileName);
+      // The bigger table can cost more than the symbols save, then code plain bytes
+      if (codedSize(symbolCounts, transform) < codedSize(codeCounts, null))
+        codeCounts = symbolCounts;
+      else
+        transform = null;
+      metrics.addPhaseNanos(HuffmanMetrics.Phase.HISTOGRAM, began);
     }
 
-    tree = getHuffmanTree(codeCounts); // Create a Huffman tree
-    codes = getCode(tree.root); // Get codes
+    long began = System.nanoTime();
+    tree = getHuffmanTree(codeCounts); // Create a Huffman tree, null for an empty file
+    codes = tree == null ? new String[codeCounts.length] : getCode(tree.root, codeCounts.length); // Get codes
+    metrics.addPhaseNanos(HuffmanMetrics.Phase.TREE, began);
+  }
+
+  /**
+   * Size of the compressed file for a set of counts, header and bit stream
+   * 
+   * @param counts    The symbol frequencies
+   * @param transform The transform the symbols come from, null for bytes
+   * @return The size in bytes
+   * @throws IOException
+   */
+  private long codedSize(int[] counts, SymbolTransform transform) throws IOException {
+    Tree tree = getHuffmanTree(counts);
+    String[] codes = tree == null ? new String[counts.length] : getCode(tree.root, counts.length);
+    long bits = 0;
+    for (int i = 0; i < counts.length; i++)
+      if (counts[i] > 0)
+        bits += (long) counts[i] * codes[i].length();
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    try (ObjectOutputStream objOut = new ObjectOutputStream(header)) {
+      objOut.writeObject(new HuffmanHeader(hashAlgorithm, digest, codes, transform, uncompressedSize, streams));
+    }
+    return header.size() + (bits + 7) / 8;
   }
 
   /**
@@ -173,16 +298,22 @@ public class HuffmanCompress {
    * 
    * This can be used to background the compression process, while other things
    * are going on (e.g. a GUI)
+   * 
+   * @throws IOException if the compression thread failed
    */
-  public void writeCompressedThread() {
-    Thread thread = new Thread(this::writeCompressed);
+  public void writeCompressedThread() throws IOException {
+    IOException[] failure = new IOException[1]; // Set by the thread, read after join()
+    Thread thread = new Thread(() -> {
+      try {
+        writeCompressed();
+      } catch (IOException e) {
+        failure[0] = e;
+      }
+    });
     thread.start();
-    /*
-     * while (thread.isAlive()) { // Print progress while the thread is alive
-     * System.out.printf("\rCompressing... %d%%", (int) (bytesRead * 100 /
-     * uncompressedSize));
-     * }
-     */
+    // Progress is available from getMetrics() while the thread is alive, e.g.
+    // getMetrics().getBytesIn() * 100 / getUncompressedSize(), or
+    // getCurrentThroughputMBps() for the speed
     // Wait for the compression thread to complete
     try {
       thread.join();
@@ -191,34 +322,194 @@ public class HuffmanCompress {
       logger.logp(Level.SEVERE, HuffmanCompress.class.getName(), "writeCompressedThread",
           "Error waiting for compression thread to complete", e);
     }
+    if (failure[0] != null)
+      throw failure[0];
   }
 
   /**
    * Write the compressed file
    * 
    * Reads the file again, and writes the compressed file
+   * 
+   * @throws IOException if a file can't be read or written
    */
-  public void writeCompressed() {
+  public void writeCompressed() throws IOException {
+    metrics.setBytesIn(0);
+    metrics.setBytesOut(0);
+    metrics.startPhase(HuffmanMetrics.Phase.ENCODE);
     try (
         FileOutputStream fileOutput = new FileOutputStream(outFileName);
         ObjectOutputStream objOut = new ObjectOutputStream(fileOutput);
-        BitOutputStream bitOut = new BitOutputStream(fileOutput);
-        BufferedInputStream input = new BufferedInputStream(new FileInputStream(inFileName))) {
+        // The bits are buffered, so the writes can be timed apart from encoding
+        OutputStream output = new BufferedOutputStream(metrics.timed(fileOutput, HuffmanMetrics.Phase.WRITE),
+            OUTPUT_BUFFER_SIZE);
+        BitOutputStream bitOut = new BitOutputStream(output)) {
       // Write the header to the compressed file
       // Header contains the hash algorithm, the digest, and the codes
-      HuffmanHeader header = new HuffmanHeader(hashAlgorithm, digest, codes);
+      long began = System.nanoTime();
+      HuffmanHeader header = new HuffmanHeader(hashAlgorithm, digest, codes, transform, uncompressedSize, streams);
       objOut.writeObject(header);
+      metrics.addPhaseNanos(HuffmanMetrics.Phase.HEADER, began);
 
-      // Write the compressed file by reading from the file 1 byte at a time and
-      // looking up the code for each byte and writing it to the compressed file
-      while (input.available() > 0) {
-        int r = input.read();
-        bytesRead++;
-        bitOut.writeBit(codes[r]);
+      if (streams > 1)
+        encodeStreamsTo(output, fileOutput.getChannel().position());
+      else
+        encodeTo(bitOut, fileOutput.getChannel().position());
+    }
+    metrics.setBytesOut(new File(outFileName).length()); // Includes the last padded byte
+    metrics.finish();
+  }
+
+  /**
+   * Encode the file into a bit stream, without a header
+   * 
+   * Reads the file again. The last partial byte is left in bitOut for the
+   * caller to flush.
+   * 
+   * @param bitOut     Where to write the bits
+   * @param headerSize Bytes already written before the bits, for the metrics
+   * @throws IOException
+   */
+  void encodeTo(BitOutputStream bitOut, long headerSize) throws IOException {
+    encodeSymbols(symbol -> bitOut.writeBit(codes[symbol]), () -> headerSize + bitOut.getBytesWritten());
+  }
+
+  /**
+   * Encode the file into blocks of interleaved bit streams, without a header
+   * 
+   * Reads the file again. See HuffmanHeader for the layout.
+   * 
+   * @param out        Where to write the blocks
+   * @param headerSize Bytes already written before the blocks, for the metrics
+   * @throws IOException
+   */
+  void encodeStreamsTo(OutputStream out, long headerSize) throws IOException {
+    BlockWriter blocks = new BlockWriter(out, codes, streams);
+    encodeSymbols(blocks, () -> headerSize + blocks.bytesWritten);
+    blocks.writeBlock(); // The last, partial block
+  }
+
+  /**
+   * Read the file and send the symbol of each byte, or of each group of bytes
+   * with a transform, to a sink
+   * 
+   * @param sink     Where to send the symbols
+   * @param bytesOut Gets the bytes written so far, for the metrics
+   * @throws IOException
+   */
+  private void encodeSymbols(SymbolTransform.SymbolSink sink, LongSupplier bytesOut) throws IOException {
+    long began = System.nanoTime();
+    long writeBefore = metrics.getPhaseNanos(HuffmanMetrics.Phase.WRITE); // Writes are not counted as encoding
+    int unpublished = 0; // Bytes read since the metrics were last updated
+    try (BufferedInputStream input = new BufferedInputStream(new FileInputStream(inFileName))) {
+      if (transform != null) { // Bytes are turned into symbols before looking up the code
+        SymbolTransform.Encoder encoder = transform.encoder(sink);
+        while (input.available() > 0) {
+          encoder.accept(input.read());
+          if (++unpublished == PUBLISH_INTERVAL) {
+            publishProgress(bytesOut.getAsLong(), unpublished);
+            unpublished = 0;
+          }
+        }
+        encoder.finish();
+      } else {
+        // Write the compressed file by reading from the file 1 byte at a time and
+        // looking up the code for each byte and writing it to the compressed file
+        while (input.available() > 0) {
+          sink.accept(input.read());
+          if (++unpublished == PUBLISH_INTERVAL) {
+            publishProgress(bytesOut.getAsLong(), unpublished);
+            unpublished = 0;
+          }
+        }
+      }
+    }
+    publishProgress(bytesOut.getAsLong(), unpublished);
+    long written = metrics.getPhaseNanos(HuffmanMetrics.Phase.WRITE) - writeBefore;
+    metrics.addNanos(HuffmanMetrics.Phase.ENCODE, System.nanoTime() - began - written);
+  }
+
+  /**
+   * Update the metrics during encoding
+   * 
+   * @param bytesOut Bytes written so far, including the header
+   * @param read     Bytes read since the last update
+   */
+  private void publishProgress(long bytesOut, int read) {
+    metrics.addBytesIn(read);
+    metrics.setBytesOut(bytesOut);
+  }
+
+  /**
+   * Collects symbols and writes them out a block at a time, dealt round robin
+   * over the streams
+   */
+  private static class BlockWriter implements SymbolTransform.SymbolSink {
+    private final OutputStream out;
+    private final String[] codes;
+    private final int[] symbols = new int[HuffmanHeader.BLOCK_SYMBOLS];
+    private int count = 0; // Symbols in the current block
+    private final ByteArrayOutputStream[] streamBytes;
+    private final BitOutputStream[] streamBits;
+    private final ByteBuffer jumpTable;
+    long bytesWritten = 0;
+
+    BlockWriter(OutputStream out, String[] codes, int streams) {
+      this.out = out;
+      this.codes = codes;
+      streamBytes = new ByteArrayOutputStream[streams];
+      streamBits = new BitOutputStream[streams];
+      for (int i = 0; i < streams; i++) {
+        streamBytes[i] = new ByteArrayOutputStream();
+        streamBits[i] = new BitOutputStream(streamBytes[i]);
       }
-    } catch (IOException e) {
-      handleIOException(e);
+      jumpTable = ByteBuffer.allocate(4 * (1 + streams));
+    }
+
+    @Override
+    public void accept(int symbol) throws IOException {
+      symbols[count++] = symbol;
+      if (count == symbols.length)
+        writeBlock();
     }
+
+    /** Write the symbols collected so far as a block, nothing if there are none */
+    void writeBlock() throws IOException {
+      if (count == 0)
+        return;
+      int streams = streamBits.length;
+      for (int i = 0; i < count; i++)
+        streamBits[i % streams].writeBit(codes[symbols[i]]);
+
+      jumpTable.clear();
+      jumpTable.putInt(count);
+      for (int i = 0; i < streams; i++) {
+        streamBits[i].flush();
+        jumpTable.putInt(streamBytes[i].size());
+      }
+      out.write(jumpTable.array());
+      bytesWritten += jumpTable.capacity();
+      for (int i = 0; i < streams; i++) {
+        streamBytes[i].writeTo(out);
+        bytesWritten += streamBytes[i].size();
+        streamBytes[i].reset();
+      }
+      count = 0;
+    }
+  }
+
+  /**
+   * Replace the codes with ones shared by several files
+   * 
+   * The shared codes must have a code for every byte in this file. Used by
+   * HuffmanArchiveWriter, only for the single byte alphabet.
+   * 
+   * @param sharedCodes The codes, index is the byte value
+   */
+  void useSharedCodes(String[] sharedCodes) {
+    if (transform != null)
+      throw new IllegalStateException("Shared codes can't be used with an extended alphabet");
+    codes = sharedCodes;
   }
 
   /**
@@ -227,12 +518,15 @@ public class HuffmanCompress {
    * This method is called once after a Huffman tree is built
    * 
    * @param root The root of the Huffman tree
+   * @param size The number of symbols in the alphabet
    * @return The array of Huffman codes
    */
-  private static String[] getCode(Node root) {
+  static String[] getCode(Node root, int size) {
     if (root == null)
       return null;
-    String[] codes = new String[SIZE];
+    String[] codes = new String[size];
+    if (root.left == null) // Only one symbol, it still needs a bit
+      root.code = "0";
     assignCode(root, codes);
     return codes;
   }
@@ -261,7 +555,7 @@ public class HuffmanCompress {
    * @param counts The array that contains the character frequencies
    * @return The Huffman tree
    */
-  private static Tree getHuffmanTree(int[] counts) {
+  static Tree getHuffmanTree(int[] counts) {
     // Create a heap to hold trees
     Heap<Tree> heap = new Heap<>(); // Defined in Listing 24.10
     for (int i = 0; i < counts.length; i++) {
@@ -283,39 +577,78 @@ public class HuffmanCompress {
    *
    * @param inFileName The name of the input file
    * @return The array of frequencies
+   * @throws IOException
    */
-  private int[] getCharacterFrequency(String inFileName) {
+  int[] getCharacterFrequency(String inFileName) throws IOException {
     int[] counts = new int[SIZE];
     long fileSize = new File(inFileName).length();
-    try (BufferedInputStream input = new BufferedInputStream(new FileInputStream(inFileName))) {
-      while (input.available() > 0) {
-        int r = input.read();
-        counts[r]++; // Read byte and increase count
-        uncompressedSize++; // Count the size of the uncompressed file as we read
-        md.update((byte) r); // Update the digest
+    if (pairCount > 0)
+      pairCounts = new int[SIZE * SIZE];
+    int previous = -1;
+    uncompressedSize = 0; // Counted again from the start on every pass
+    metrics.startPhase(HuffmanMetrics.Phase.HISTOGRAM);
+    metrics.setBytesIn(0);
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (FileInputStream input = new FileInputStream(inFileName)) {
+      int n;
+      while ((n = input.read(buffer)) > 0) {
+        long began = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+          int r = buffer[i] & 0xFF;
+          counts[r]++; // Read byte and increase count
+          if (pairCounts != null && previous >= 0)
+            pairCounts[(previous << 8) | r]++;
+          previous = r;
+        }
+        uncompressedSize += n; // Count the size of the uncompressed file as we read
+        metrics.addBytesIn(n); // Progress of the first pass
+        metrics.addPhaseNanos(HuffmanMetrics.Phase.HISTOGRAM, began);
+
+        began = System.nanoTime();
+        md.update(buffer, 0, n); // Update the digest
+        metrics.addPhaseNanos(HuffmanMetrics.Phase.DIGEST, began);
       }
-    } catch (IOException ex) {
-      handleIOException(ex);
     }
 
     logger.log(Level.INFO, "\nUncompressed size: " + uncompressedSize + "\n");
 
     if (md != null) {
+      long began = System.nanoTime();
       digest = md.digest();
+      metrics.addPhaseNanos(HuffmanMetrics.Phase.DIGEST, began);
     } else {
-      logger.logp(Level.SEVERE, HuffmanCompress.class.getName(), "getCharacterFrequency",
-          "Message digest is null");
-      System.exit(1);
+      throw new IllegalStateException("Message digest is null");
     }
     logger.log(Level.INFO, hashAlgorithm + " Digest: " + String.format("%02X", new BigInteger(1, digest)));
 
     return counts;
   }
 
-  // Helper method for handling IOException
-  private void handleIOException(IOException e) {
-    logger.logp(Level.SEVERE, HuffmanCompress.class.getName(), "handleIOException", "IOException: " + e.getMessage(),
-        e);
-    System.exit(1);
+  /**
+   * Get the frequency of the extended alphabet symbols
+   * 
+   * Reads the file again and runs it through the transform
+   *
+   * @param inFileName The name of the input file
+   * @return The array of frequencies, index is the symbol
+   * @throws IOException
+   */
+  private int[] getSymbolFrequency(String inFileName) throws IOException {
+    int[] counts = new int[transform.alphabetSize()];
+    metrics.setBytesIn(0); // Another pass over the file
+    try (BufferedInputStream input = new BufferedInputStream(new FileInputStream(inFileName))) {
+      SymbolTransform.Encoder encoder = transform.encoder(symbol -> counts[symbol]++);
+      int unpublished = 0;
+      while (input.available() > 0) {
+        encoder.accept(input.read());
+        if (++unpublished == PUBLISH_INTERVAL) {
+          metrics.addBytesIn(unpublished);
+          unpublished = 0;
+        }
+      }
+      metrics.addBytesIn(unpublished);
+      encoder.finish();
+    }
+    return counts;
   }
 }
@@ -0,0 +1,637 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Reusable table driven decoder for files written by HuffmanCompress
+ *
+ * Meant to be kept by a long running service and used for file after file.
+ * The I/O buffers and the decode tables live in direct memory from the
+ * DirectBufferPool, and are only given back by close(). Decoding reads up to
+ * LOOKUP_BITS bits at a time and looks the symbol up in a table, only codes
+ * longer than that walk the code tree.
+ *
+ * Files written with interleaved streams (see HuffmanHeader) are decoded one
+ * block at a time, taking one symbol from each stream per loop iteration. The
+ * streams don't depend on each other, so the CPU can overlap their lookups
+ * instead of waiting for each code length before starting the next.
+ *
+ * The raw bytes of the last RECENT_HEADERS headers are kept along with the
+ * parsed headers. After warmup, decompress(FileChannel, FileChannel) allocates
+ * nothing on the Java heap as long as the file's header is one of those, e.g.
+ * a working set of up to RECENT_HEADERS hot files read in any order: the tables
+ * are rebuilt in place from the kept codes. Any other header allocates, it has
+ * to be deserialized, which creates the header object, its codes and
+ * transform. Check_Allocation fails if reading one file over and over, or two
+ * files in turn, allocates.
+ *
+ * Only files that store their size in the header can be decoded, older files
+ * and adaptive streams need HuffmanDecompress.
+ *
+ * Not thread safe, use one decoder per thread.
+ *
+ */
+public class HuffmanDecoder implements AutoCloseable {
+   private static final int BUFFER_SIZE = 64 * 1024; // Size of each I/O buffer, and the largest header kept
+   static final int RECENT_HEADERS = 8; // Headers kept to spot a repeat
+   private static final int MIN_HEADER_BUFFER = 4 * 1024; // Smallest buffer for a kept header
+   static final int LOOKUP_BITS = 11; // Codes up to this long are decoded with one lookup
+   private static final int MAX_SYMBOLS = SymbolTransform.SIZE + SymbolTransform.RUN_MAX
+         + SymbolTransform.MAX_PAIRS;
+   private static final int LOOKUP_OFFSET = 0; // lookup table: (symbol << 8) | length, 0 if longer
+   private static final int CHILD_OFFSET = 4 << LOOKUP_BITS; // code tree, laid out as in DecodeTree
+
+   private ByteBuffer in; // Compressed bytes read but not yet moved into bits
+   private ByteBuffer out; // Decompressed bytes not yet written
+   private ByteBuffer tables; // Lookup table followed by the code tree
+   private ByteBuffer block; // The streams of the current block, grown if a block doesn't fit
+
+   private HuffmanHeader header; // The last header read
+   private MessageDigest md;
+   private final RecentHeader[] recent = new RecentHeader[RECENT_HEADERS];
+   private RecentHeader current; // The kept header the tables are built for, null if none
+   private long clock; // Counts header uses, to find the least recent
+   private byte[] digestOut = new byte[0];
+   private int childEntries = 2 * MAX_SYMBOLS; // Code tree entries to clear before a rebuild, all of a pooled buffer
+
+   private long bitBuffer; // Unread bits, the next one in the highest bit
+   private int bitCount; // Number of unread bits in bitBuffer
+   private int previous; // Last byte written, needed to expand run symbols
+   private final SymbolTransform.ByteSink sink = this::put; // Created once, not per symbol
+   private final StreamReader[] readers = new StreamReader[HuffmanHeader.STREAMS];
+   private HuffmanMetrics metrics; // null if not reporting
+
+   /**
+    * Create a decoder, taking its buffers from the pool
+    */
+   public HuffmanDecoder() {
+      in = DirectBufferPool.acquire(BUFFER_SIZE);
+      out = DirectBufferPool.acquire(BUFFER_SIZE);
+      // Never leaves the decoder, so no need to swap bytes on every lookup
+      tables = DirectBufferPool.acquire(CHILD_OFFSET + 8 * MAX_SYMBOLS).order(ByteOrder.nativeOrder());
+      block = DirectBufferPool.acquire(BUFFER_SIZE);
+      for (int i = 0; i < readers.length; i++)
+         readers[i] = new StreamReader();
+      for (int i = 0; i < recent.length; i++)
+         recent[i] = new RecentHeader();
+   }
+
+   /** A header read recently, with its raw bytes to spot a repeat */
+   private static class RecentHeader {
+      ByteBuffer bytes; // Pooled, null until used
+      int length; // Length of the header in bytes, 0 if none
+      HuffmanHeader header;
+      MessageDigest md; // For header.digestAlgorithm
+      long used; // clock when last used
+   }
+
+   /**
+    * Decompress a file
+    *
+    * Opening the files allocates, use decompress(FileChannel, FileChannel) to
+    * avoid that.
+    *
+    * @param inFileName  The compressed file
+    * @param outFileName The decompressed file, replaced if it exists
+    * @return true if the digest matches
+    * @throws IOException
+    */
+   public boolean decompress(String inFileName, String outFileName) throws IOException {
+      try (FileChannel input = FileChannel.open(Paths.get(inFileName), StandardOpenOption.READ);
+            FileChannel output = FileChannel.open(Paths.get(outFileName), StandardOpenOption.WRITE,
+                  StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+         return decompress(input, output);
+      }
+   }
+
+   /**
+    * Decompress from one channel to another
+    *
+    * @param input  The compressed data, read from its current position
+    * @param output Where to write the decompressed data, from its current
+    *               position
+    * @return true if the digest matches
+    * @throws IOException if the data is corrupt or can't be read or written
+    */
+   public boolean decompress(FileChannel input, FileChannel output) throws IOException {
+      if (in == null)
+         throw new IllegalStateException("Decoder is closed");
+      readHeader(input);
+      return decode(input, output);
+   }
+
+   /**
+    * Decompress data whose header has already been read, e.g. by
+    * HuffmanDecompress
+    *
+    * @param header The header
+    * @param input  The compressed data, read from just after the header
+    * @param output Where to write the decompressed data
+    * @return true if the digest matches
+    * @throws IOException if the data is corrupt or can't be read or written
+    */
+   boolean decompress(HuffmanHeader header, FileChannel input, FileChannel output) throws IOException {
+      if (in == null)
+         throw new IllegalStateException("Decoder is closed");
+      current = null; // The tables no longer match a kept header
+      useHeader(header);
+      return decode(input, output);
+   }
+
+   /**
+    * Report the bytes written, and the time spent writing them, to metrics as
+    * the output is flushed
+    *
+    * @param metrics The metrics, or null for none
+    */
+   void setMetrics(HuffmanMetrics metrics) {
+      this.metrics = metrics;
+   }
+
+   /** Check the header can be decoded, then decode the data after it */
+   private boolean decode(FileChannel input, FileChannel output) throws IOException {
+      if (header.size == null)
+         throw new IOException("File was written by an older version, use HuffmanDecompress");
+      if (header.streams > 1 && header.streams != HuffmanHeader.STREAMS)
+         throw new IOException("Unsupported number of streams: " + header.streams);
+
+      // Reset the state left from the last file, the tables stay
+      in.clear().flip();
+      out.clear();
+      bitBuffer = 0;
+      bitCount = 0;
+      previous = -1;
+      md.reset();
+
+      if (header.streams > 1)
+         decodeBlocks(input, output, header.size);
+      else
+         decodeSymbols(input, output, header.size);
+      flush(output);
+
+      int length = md.getDigestLength();
+      if (digestOut.length < length)
+         digestOut = new byte[length];
+      try {
+         md.digest(digestOut, 0, length);
+      } catch (DigestException e) {
+         throw new IOException(e.getMessage(), e);
+      }
+      if (header.digest.length != length)
+         return false;
+      for (int i = 0; i < length; i++)
+         if (digestOut[i] != header.digest[i])
+            return false;
+      return true;
+   }
+
+   /**
+    * Read the header, or skip it if it is one of the recent ones
+    */
+   private void readHeader(FileChannel input) throws IOException {
+      long start = input.position();
+      RecentHeader kept = findRecent(input, start);
+      if (kept != null) {
+         input.position(start + kept.length);
+         if (kept != current) {
+            header = null; // In case the codes are bad
+            buildTables(kept.header.codes);
+            header = kept.header;
+            md = kept.md;
+            current = kept;
+         }
+         kept.used = ++clock;
+         return;
+      }
+
+      HuffmanHeader next;
+      try {
+         // Not closed, that would close the channel. Reads exactly the header
+         next = (HuffmanHeader) new ObjectInputStream(Channels.newInputStream(input)).readObject();
+      } catch (ClassNotFoundException | ClassCastException e) {
+         throw new IOException("Not a valid Huffman compressed file", e);
+      }
+      long length = input.position() - start;
+      current = null; // Until the tables are built for it
+      useHeader(next);
+
+      // Keep the raw header in place of the least recent one
+      if (length > BUFFER_SIZE)
+         return;
+      kept = recent[0];
+      for (RecentHeader r : recent)
+         if (r.used < kept.used)
+            kept = r;
+      kept.length = 0; // Not a match until it is filled in
+      kept.header = null;
+      if (kept.bytes == null || kept.bytes.capacity() < length) {
+         if (kept.bytes != null)
+            DirectBufferPool.release(kept.bytes);
+         int capacity = Integer.highestOneBit((int) length - 1) << 1;
+         kept.bytes = DirectBufferPool.acquire(Math.max(MIN_HEADER_BUFFER, capacity));
+      }
+      kept.bytes.clear().limit((int) length);
+      readFully(input, kept.bytes, start);
+      kept.length = (int) length;
+      kept.header = next;
+      kept.md = md;
+      kept.used = ++clock;
+      current = kept;
+   }
+
+   /** Get the digest and build the tables for a header */
+   private void useHeader(HuffmanHeader next) throws IOException {
+      if (next.refresh > 0) // No codes to build tables from
+         throw new IOException("File is an adaptive stream, use HuffmanDecompress or HuffmanInputStream");
+      if (next.codes == null)
+         throw new IOException("Not a valid Huffman compressed file");
+      if (md == null || !md.getAlgorithm().equals(next.digestAlgorithm)) {
+         try {
+            md = MessageDigest.getInstance(next.digestAlgorithm);
+         } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage(), e);
+         }
+      }
+      header = null; // In case the codes are bad
+      buildTables(next.codes);
+      header = next;
+   }
+
+   /**
+    * Find the recent header the bytes at start begin with. A serialized header
+    * ends itself, so if a kept one matches, it is the file's header
+    *
+    * @return The header, null if none of them match
+    */
+   private RecentHeader findRecent(FileChannel input, long start) throws IOException {
+      int longest = 0;
+      for (RecentHeader r : recent)
+         longest = Math.max(longest, r.length);
+      long available = Math.min(longest, input.size() - start);
+      if (available <= 0)
+         return null;
+      in.clear().limit((int) available);
+      readFully(input, in, start);
+      for (RecentHeader r : recent) {
+         if (r.length == 0 || r.length > available)
+            continue;
+         in.clear().limit(r.length);
+         r.bytes.clear().limit(r.length);
+         if (in.equals(r.bytes))
+            return r;
+      }
+      return null;
+   }
+
+   /** Fill a buffer from a position, the channel's own position is unchanged */
+   private static void readFully(FileChannel input, ByteBuffer buffer, long position) throws IOException {
+      while (buffer.hasRemaining()) {
+         int n = input.read(buffer, position);
+         if (n < 0)
+            throw new IOException("File ended early");
+         position += n;
+      }
+   }
+
+   /**
+    * Build the lookup table and the code tree for a set of codes
+    */
+   private void buildTables(String[] codes) throws IOException {
+      if (codes.length > MAX_SYMBOLS)
+         throw new IOException("Too many symbols: " + codes.length);
+      for (int i = 0; i < 1 << LOOKUP_BITS; i++)
+         tables.putInt(LOOKUP_OFFSET + 4 * i, 0);
+      for (int i = 0; i < childEntries; i++)
+         tables.putInt(CHILD_OFFSET + 4 * i, 0);
+
+      int nodes = 1;
+      for (int symbol = 0; symbol < codes.length; symbol++) {
+         String code = codes[symbol];
+         if (code == null || code.isEmpty())
+            continue;
+         int length = code.length();
+         int value = 0; // The code's bits, only needed if it fits in the lookup table
+         int node = 0;
+         for (int i = 0; i < length; i++) {
+            int bit = code.charAt(i) - '0';
+            if (i < LOOKUP_BITS)
+               value = (value << 1) | bit;
+            int branch = CHILD_OFFSET + 4 * (2 * node + bit);
+            if (i == length - 1) {
+               tables.putInt(branch, ~symbol);
+            } else {
+               if (tables.getInt(branch) == 0)
+                  tables.putInt(branch, nodes++);
+               node = tables.getInt(branch);
+            }
+         }
+         if (length <= LOOKUP_BITS) { // Every index that starts with this code
+            int first = value << (LOOKUP_BITS - length);
+            for (int i = 0; i < 1 << (LOOKUP_BITS - length); i++)
+               tables.putInt(LOOKUP_OFFSET + 4 * (first + i), (symbol << 8) | length);
+         }
+      }
+      childEntries = 2 * nodes;
+   }
+
+   /**
+    * The decode loop
+    *
+    * @param size Number of bytes to produce
+    */
+   private void decodeSymbols(FileChannel input, FileChannel output, long size) throws IOException {
+      SymbolTransform transform = header.transform;
+      long written = 0;
+      while (written < size) {
+         if (out.remaining() < SymbolTransform.RUN_MAX) // Room for the longest expansion
+            flush(output);
+         if (bitCount <= 56)
+            refill(input);
+         int entry = lookup(bitBuffer, bitCount);
+         int length = entry & 0xFF;
+         if (length > bitCount)
+            throw new IOException("Compressed data ended early");
+         bitBuffer <<= length;
+         bitCount -= length;
+         written += emit(transform, entry >>> 8);
+      }
+   }
+
+   /**
+    * The decode loop for interleaved streams, reads and decodes one block at a
+    * time
+    *
+    * @param size Number of bytes to produce
+    */
+   private void decodeBlocks(FileChannel input, FileChannel output, long size) throws IOException {
+      SymbolTransform transform = header.transform;
+      int jumpTableSize = 4 * (1 + readers.length);
+      long position = input.position();
+      long written = 0;
+      while (written < size) {
+         in.clear().limit(jumpTableSize);
+         readFully(input, in, position);
+         position += jumpTableSize;
+         int symbols = in.getInt(0);
+         if (symbols <= 0 || symbols > HuffmanHeader.BLOCK_SYMBOLS)
+            throw new IOException("Not a valid Huffman compressed file");
+         // Check the jump table against the file before allocating anything for it
+         long remaining = Math.min(input.size() - position, Integer.MAX_VALUE);
+         long length = 0;
+         for (int i = 0; i < readers.length; i++) {
+            int streamLength = in.getInt(4 * (1 + i));
+            if (streamLength < 0 || length + streamLength > remaining)
+               throw new IOException("Not a valid Huffman compressed file");
+            readers[i].start((int) length, (int) (length + streamLength));
+            length += streamLength;
+         }
+         if (length > block.capacity()) { // Only when a block is bigger than any before
+            long capacity = Long.highestOneBit(length - 1) << 1;
+            DirectBufferPool.release(block);
+            block = DirectBufferPool.acquire((int) Math.min(capacity, remaining));
+         }
+         block.clear().limit((int) length);
+         readFully(input, block, position);
+         position += length;
+
+         written += decodeBlock(transform, symbols, output);
+      }
+      input.position(position);
+   }
+
+   /**
+    * Decode the four streams of a block
+    *
+    * Each stream's bits are kept in locals so the JIT can keep them in
+    * registers, and the four lookups in an iteration don't wait on each other.
+    *
+    * @return Number of bytes produced
+    */
+   private long decodeBlock(SymbolTransform transform, int symbols, FileChannel output) throws IOException {
+      StreamReader r0 = readers[0], r1 = readers[1], r2 = readers[2], r3 = readers[3];
+      long bits0 = 0, bits1 = 0, bits2 = 0, bits3 = 0;
+      int count0 = 0, count1 = 0, count2 = 0, count3 = 0;
+      long written = 0;
+      for (int i = symbols / 4; i > 0; i--) {
+         if (out.remaining() < 4 * SymbolTransform.RUN_MAX)
+            flush(output);
+         if (count0 <= 56) {
+            bits0 |= r0.refill(count0);
+            count0 = r0.count;
+         }
+         if (count1 <= 56) {
+            bits1 |= r1.refill(count1);
+            count1 = r1.count;
+         }
+         if (count2 <= 56) {
+            bits2 |= r2.refill(count2);
+            count2 = r2.count;
+         }
+         if (count3 <= 56) {
+            bits3 |= r3.refill(count3);
+            count3 = r3.count;
+         }
+         int e0 = lookup(bits0, count0);
+         int e1 = lookup(bits1, count1);
+         int e2 = lookup(bits2, count2);
+         int e3 = lookup(bits3, count3);
+         bits0 <<= e0 & 0xFF;
+         count0 -= e0 & 0xFF;
+         bits1 <<= e1 & 0xFF;
+         count1 -= e1 & 0xFF;
+         bits2 <<= e2 & 0xFF;
+         count2 -= e2 & 0xFF;
+         bits3 <<= e3 & 0xFF;
+         count3 -= e3 & 0xFF;
+         if ((count0 | count1 | count2 | count3) < 0)
+            throw new IOException("Compressed data ended early");
+         written += emit(transform, e0 >>> 8);
+         written += emit(transform, e1 >>> 8);
+         written += emit(transform, e2 >>> 8);
+         written += emit(transform, e3 >>> 8);
+      }
+      r0.save(bits0, count0);
+      r1.save(bits1, count1);
+      r2.save(bits2, count2);
+      r3.save(bits3, count3);
+      for (int i = 0; i < symbols % 4; i++) {
+         if (out.remaining() < SymbolTransform.RUN_MAX)
+            flush(output);
+         written += emit(transform, readers[i].next());
+      }
+      return written;
+   }
+
+   /**
+    * Look up the code at the top of a bit buffer
+    *
+    * @param bits      The bits, the next one in the highest bit
+    * @param available Number of valid bits
+    * @return (symbol << 8) | code length
+    */
+   private int lookup(long bits, int available) throws IOException {
+      int entry = tables.getInt(LOOKUP_OFFSET + 4 * (int) (bits >>> (64 - LOOKUP_BITS)));
+      if (entry != 0)
+         return entry;
+      // Longer than the lookup table, walk the tree one bit at a time
+      int node = 0;
+      int length = 0;
+      while (true) {
+         int bit = (int) (bits >>> (63 - length)) & 1;
+         int next = tables.getInt(CHILD_OFFSET + 4 * (2 * node + bit));
+         length++;
+         if (next < 0)
+            return (~next << 8) | length;
+         if (next == 0 || length >= available)
+            throw new IOException("Compressed data does not match the codes");
+         node = next;
+      }
+   }
+
+   /**
+    * Add a decoded symbol to the output buffer, expanding it if there is a
+    * transform
+    *
+    * @return Number of bytes added
+    */
+   private int emit(SymbolTransform transform, int symbol) throws IOException {
+      if (transform == null) {
+         put(symbol);
+         return 1;
+      }
+      int before = out.position();
+      previous = transform.expand(symbol, previous, sink);
+      return out.position() - before;
+   }
+
+   /**
+    * Reads one of the interleaved streams of the current block
+    *
+    * decodeBlock keeps the bits in its own locals, refill() only tracks the
+    * position in block.
+    */
+   private class StreamReader {
+      private long bits; // Unread bits, the next one in the highest bit
+      private int count; // Number of unread bits
+      private int position; // Next byte of the stream in block
+      private int end; // End of the stream in block
+
+      void start(int position, int end) {
+         this.position = position;
+         this.end = end;
+         bits = 0;
+         count = 0;
+      }
+
+      /** Keep the bits left over by decodeBlock */
+      void save(long bits, int count) {
+         this.bits = bits;
+         this.count = count;
+      }
+
+      /** Decode the next symbol */
+      int next() throws IOException {
+         if (count <= 56)
+            bits |= refill(count);
+         int entry = lookup(bits, count);
+         int length = entry & 0xFF;
+         if (length > count)
+            throw new IOException("Compressed data ended early");
+         bits <<= length;
+         count -= length;
+         return entry >>> 8;
+      }
+
+      /**
+       * Read bytes to top the bits up to at least 57, or to the end of the
+       * stream
+       *
+       * @param current Number of bits already held
+       * @return Bits to OR into the bit buffer, count is set to the new total
+       */
+      long refill(int current) {
+         if (end - position >= 8) { // Whole bytes from one read, the partial byte is read again next time
+            int added = (64 - current) >>> 3;
+            long word = block.getLong(position) >>> current;
+            position += added;
+            count = current + 8 * added;
+            return word;
+         }
+         long word = 0;
+         while (current <= 56 && position < end) {
+            word |= (long) (block.get(position++) & 0xFF) << (56 - current);
+            current += 8;
+         }
+         count = current;
+         return word;
+      }
+   }
+
+   /** Move whole bytes from the input buffer into bitBuffer */
+   private void refill(FileChannel input) throws IOException {
+      while (bitCount <= 56) {
+         if (!in.hasRemaining()) {
+            in.clear();
+            if (input.read(in) <= 0) {
+               in.flip();
+               return; // Nothing left, decoding fails if it needs more bits
+            }
+            in.flip();
+         }
+         bitBuffer |= (long) (in.get() & 0xFF) << (56 - bitCount);
+         bitCount += 8;
+      }
+   }
+
+   /** Add a byte to the output buffer */
+   private void put(int b) {
+      out.put((byte) b);
+      previous = b;
+   }
+
+   /** Digest and write the output buffer */
+   private void flush(FileChannel output) throws IOException {
+      out.flip();
+      md.update(out);
+      out.position(0);
+      long began = System.nanoTime();
+      int length = out.remaining();
+      while (out.hasRemaining())
+         output.write(out);
+      out.clear();
+      if (metrics != null) {
+         metrics.addPhaseNanos(HuffmanMetrics.Phase.WRITE, began);
+         metrics.addBytesOut(length);
+      }
+   }
+
+   /**
+    * Give the buffers back to the pool
+    */
+   @Override
+   public void close() {
+      if (in == null)
+         return;
+      DirectBufferPool.release(in);
+      DirectBufferPool.release(out);
+      DirectBufferPool.release(tables);
+      DirectBufferPool.release(block);
+      in = out = tables = block = null;
+      for (RecentHeader r : recent) {
+         if (r.bytes != null)
+            DirectBufferPool.release(r.bytes);
+         r.bytes = null;
+         r.length = 0;
+         r.header = null;
+      }
+      current = null;
+   }
+}
@@ -1,8 +1,18 @@
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Map;
@@ -20,18 +30,44 @@ import java.util.stream.IntStream;
 public class HuffmanDecompress {
    private static final int SIZE = 256; // Number of characters in the ASCII set
    private static final int MAX_INPUT_BUFFER = 1024; // Maximum number of bytes to read at a time
+   private static final int PUBLISH_INTERVAL = 4096; // Bytes written between metrics updates
+   private static final int OUTPUT_BUFFER_SIZE = 64 * 1024; // Bytes written to the file at a time
    private BufferedInputStream input;
    private ObjectInputStream objIn;
    private FileInputStream fIn;
+   private HuffmanHeader header;
    private String[] codeChar;
+   private Map<String, Integer> codeMap; // code -> symbol, built by write() unless cached
+   private SymbolTransform transform; // null if each code is a single byte
    byte[] digest;
    String inFileName;
    String outFileName;
    MessageDigest md = null;
+   final HuffmanMetrics metrics = new HuffmanMetrics(false);
+   private long bytesRead; // Compressed bytes read so far, including the header
+   private long bytesWritten; // Decompressed bytes written so far
+   private long dataOffset; // Position of the first bit after the header
+   private final HuffmanCache cache; // null if not caching
+   private String cacheKey;
+   private boolean headerCached = false; // true if the header came from the cache
+   private ByteArrayOutputStream capture; // Copy of the output for the cache, null if not needed
 
-   public HuffmanDecompress(String inFileName, String outFileName) {
+   public HuffmanDecompress(String inFileName, String outFileName) throws IOException {
+      this(inFileName, outFileName, null);
+   }
+
+   /**
+    * Decompress using a cache shared with other decompressions
+    * 
+    * @param inFileName  The compressed file
+    * @param outFileName The decompressed file
+    * @param cache       The cache, or null for none
+    * @throws IOException if the header can't be read
+    */
+   public HuffmanDecompress(String inFileName, String outFileName, HuffmanCache cache) throws IOException {
       this.inFileName = inFileName;
       this.outFileName = outFileName;
+      this.cache = cache;
 
       readHuffHeader();
    }
@@ -39,12 +75,22 @@ public class HuffmanDecompress {
    /**
     * Get the digest of the file
     * 
-    * @return The digest of the file
+    * @return The digest of the file, null for an adaptive stream, which has it
+    *         at the end
     */
    public byte[] getDigest() {
       return digest;
    }
 
+   /**
+    * Get the metrics for this decompression
+    * 
+    * @return The metrics, can be polled while write() runs
+    */
+   public HuffmanMetrics getMetrics() {
+      return metrics;
+   }
+
    /**
     * Get the hash algorithm used to create the digest
     * 
@@ -57,35 +103,70 @@ public class HuffmanDecompress {
    /**
     * Read the Huffman header from the file
     * 
+    * If the header is in the cache, the file is opened just past it instead.
     * 
+    * @throws IOException if the file can't be read or is not a Huffman
+    *                     compressed file, the file is closed
     */
-   private void readHuffHeader() {
+   private void readHuffHeader() throws IOException {
       try {
-         openFile();
-         HuffmanHeader header = (HuffmanHeader) objIn.readObject();
+         long began = System.nanoTime();
+         HuffmanCache.CachedHeader cached = null;
+         fIn = new FileInputStream(inFileName);
+         if (cache != null) {
+            cacheKey = HuffmanCache.fileKey(inFileName);
+            cached = cache.getHeader(cacheKey, fIn.getChannel());
+         }
+         if (cached != null) { // fIn is just past the header
+            headerCached = true;
+            header = cached.header;
+            codeMap = cached.codeMap;
+            input = new BufferedInputStream(fIn);
+         } else {
+            openStreams();
+            header = (HuffmanHeader) objIn.readObject();
+         }
          codeChar = header.codes;
+         transform = header.transform;
          digest = header.digest;
 
          md = MessageDigest.getInstance(header.digestAlgorithm);
+         dataOffset = fIn.getChannel().position(); // Nothing has been buffered yet, this is the header size
+         bytesRead = dataOffset;
+         metrics.setBytesIn(bytesRead);
+         metrics.addPhaseNanos(HuffmanMetrics.Phase.HEADER, began);
 
-      } catch (ClassNotFoundException | IOException | NoSuchAlgorithmException e) {
-         System.out.println(e.getMessage());
-         System.exit(1);
+      } catch (ClassNotFoundException | ClassCastException | IOException | NoSuchAlgorithmException e) {
+         if (fIn != null)
+            closeFile();
+         if (e instanceof IOException)
+            throw (IOException) e;
+         throw new IOException(inFileName + " is not a valid Huffman compressed file: " + e.getMessage(), e);
       }
 
    }
 
    /**
-    * Open the file for reading, and create the input streams
+    * Create the input streams on the open file
     * 
     * @throws IOException
     */
-   private void openFile() throws IOException {
-      fIn = new FileInputStream(inFileName);
+   private void openStreams() throws IOException {
       input = new BufferedInputStream(fIn);
       objIn = new ObjectInputStream(fIn);
    }
 
+   /**
+    * Close the input streams
+    */
+   private void closeFile() {
+      try {
+         fIn.close(); // input and objIn only read from fIn
+      } catch (IOException e) {
+         System.out.println(e.getMessage());
+      }
+   }
+
    /**
     * Fill up the queue with bits from the file
     * 
@@ -101,6 +182,7 @@ public class HuffmanDecompress {
          for (char c : getBits(inputStream.read()).toCharArray()) {
             inputPipe.put(c);
          }
+         bytesRead++;
 
       }
    }
@@ -108,18 +190,51 @@ public class HuffmanDecompress {
    /**
     * Decompress the file and write it to the output file
     * 
+    * Files that store their size in the header, with one stream or
+    * interleaved streams, are decoded by HuffmanDecoder, adaptive streams by
+    * HuffmanInputStream. Only files written by older versions go through the
+    * bit by bit loop here.
+    * 
     * @return True if the file was successfully decompressed, false otherwise
+    * @throws IOException if a file can't be read or written, or the data is
+    *                     corrupt
     */
-   public boolean write() {
-      try (FileOutputStream fileOutput = new FileOutputStream(outFileName)) {
+   public boolean write() throws IOException {
+      if (header.refresh > 0)
+         return writeAdaptive();
+      if (header.size != null)
+         return writeDecoded();
+      long began = System.nanoTime();
+      long writeBefore = 0; // WRITE time before decoding, it is not counted as decoding
+      try (OutputStream fileOutput = openOutput()) {
+         if (cache != null) {
+            byte[] data = cache.getDecoded(cacheKey, digest);
+            if (data != null) { // Decompressed and verified before
+               fileOutput.write(data);
+               bytesWritten = data.length;
+               return true;
+            }
+            capture = new ByteArrayOutputStream();
+         }
          BlockingQueue<Character> inputPipe = new LinkedBlockingQueue<>(MAX_INPUT_BUFFER);
 
-         Map<String, Integer> codeMap = IntStream.range(0, SIZE) // Working with a map is easier then the array
-               .filter(j -> codeChar[j] != null)
-               .boxed()
-               .collect(Collectors.toMap(j -> codeChar[j], Function.identity()));
+         if (codeMap == null) {
+            codeMap = IntStream.range(0, codeChar.length) // Working with a map is easier then the array
+                  .filter(j -> codeChar[j] != null)
+                  .boxed()
+                  .collect(Collectors.toMap(j -> codeChar[j], Function.identity()));
+            if (cache != null)
+               cache.putHeader(cacheKey, new HuffmanCache.CachedHeader(header, codeMap,
+                     HuffmanCache.readHeaderBytes(fIn.getChannel(), dataOffset)));
+         }
+         metrics.addPhaseNanos(HuffmanMetrics.Phase.TREE, began);
 
+         began = System.nanoTime();
+         writeBefore = metrics.getPhaseNanos(HuffmanMetrics.Phase.WRITE);
+         metrics.startPhase(HuffmanMetrics.Phase.DECODE);
+         long published = 0; // bytesWritten at the last metrics update
          String window = "";
+         int previous = -1; // Last byte written, needed to expand run symbols
          // Loop until we have read all the bits from the file and the pipe is empty
          while ((input.available() > 0) || (!inputPipe.isEmpty())) {
             if (inputPipe.remainingCapacity() > 8) // Add more bits to the processing pipe, min of 8 bytes needed
@@ -127,20 +242,156 @@ public class HuffmanDecompress {
             window += inputPipe.take();
             if (codeMap.containsKey(window)) { // If the current string is a key in the map, write the value
                int j = codeMap.get(window);
-               fileOutput.write(j);
-               md.update((byte) j);
+               if (transform == null) {
+                  writeByte(fileOutput, j);
+               } else { // Expand the symbol straight into the output
+                  previous = transform.expand(j, previous, b -> writeByte(fileOutput, b));
+               }
                window = "";
+               if (bytesWritten - published >= PUBLISH_INTERVAL) {
+                  publishProgress();
+                  published = bytesWritten;
+               }
             }
             // Compare currently calculated digest to the one read from the file
             if (MessageDigest.isEqual(((MessageDigest) md.clone()).digest(), digest)) {
+               if (capture != null)
+                  cache.putDecoded(cacheKey, digest, capture.toByteArray());
                return true;
             }
          }
-      } catch (Exception e) { // TODO catch specific exceptions
-         System.out.println(e.getMessage());
-         System.exit(1);
+         return MessageDigest.isEqual(md.digest(), digest); // Only reached for an empty file
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Interrupted while decompressing " + inFileName);
+      } catch (CloneNotSupportedException e) {
+         throw new IOException(e.getMessage(), e);
+      } finally {
+         closeFile();
+         publishProgress();
+         addDecodeNanos(began, writeBefore);
+         metrics.finish();
+      }
+   }
+
+   /**
+    * Open the output file, buffered and with its writes timed
+    * 
+    * @throws IOException
+    */
+   private OutputStream openOutput() throws IOException {
+      return new BufferedOutputStream(metrics.timed(new FileOutputStream(outFileName), HuffmanMetrics.Phase.WRITE),
+            OUTPUT_BUFFER_SIZE);
+   }
+
+   /**
+    * Add the time since began to DECODE, less the time spent writing
+    * 
+    * @param began       System.nanoTime() when decoding started
+    * @param writeBefore WRITE time when decoding started
+    */
+   private void addDecodeNanos(long began, long writeBefore) {
+      long written = metrics.getPhaseNanos(HuffmanMetrics.Phase.WRITE) - writeBefore;
+      metrics.addNanos(HuffmanMetrics.Phase.DECODE, System.nanoTime() - began - written);
+   }
+
+   /**
+    * Decompress with HuffmanDecoder, which stops after the size in the header
+    * 
+    * @return True if the digest matches
+    * @throws IOException
+    */
+   private boolean writeDecoded() throws IOException {
+      long began = System.nanoTime();
+      long writeBefore = metrics.getPhaseNanos(HuffmanMetrics.Phase.WRITE);
+      metrics.startPhase(HuffmanMetrics.Phase.DECODE);
+      try (FileChannel output = FileChannel.open(Paths.get(outFileName), StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+         if (cache != null) {
+            byte[] data = cache.getDecoded(cacheKey, digest);
+            if (data != null) { // Decompressed and verified before
+               ByteBuffer buffer = ByteBuffer.wrap(data);
+               while (buffer.hasRemaining())
+                  output.write(buffer);
+               bytesWritten = data.length;
+               return true;
+            }
+         }
+         boolean verified;
+         try (HuffmanDecoder decoder = new HuffmanDecoder()) {
+            decoder.setMetrics(metrics);
+            verified = decoder.decompress(header, fIn.getChannel(), output); // fIn is just past the header
+         }
+         bytesWritten = header.size;
+         if (verified && cache != null) {
+            if (!headerCached)
+               cache.putHeader(cacheKey, new HuffmanCache.CachedHeader(header, null,
+                     HuffmanCache.readHeaderBytes(fIn.getChannel(), dataOffset)));
+            if (cache.canHoldDecoded(header.size))
+               cache.putDecoded(cacheKey, digest, Files.readAllBytes(Paths.get(outFileName)));
+         }
+         return verified;
+      } finally {
+         bytesRead = new File(inFileName).length();
+         closeFile();
+         publishProgress();
+         addDecodeNanos(began, writeBefore);
+         metrics.finish();
+      }
+   }
+
+   /**
+    * Decompress an adaptive stream, which has no codes in the header
+    * 
+    * @return True if the digest at the end matches
+    * @throws IOException
+    */
+   private boolean writeAdaptive() throws IOException {
+      long began = System.nanoTime();
+      long writeBefore = metrics.getPhaseNanos(HuffmanMetrics.Phase.WRITE);
+      metrics.startPhase(HuffmanMetrics.Phase.DECODE);
+      try (HuffmanInputStream decoded = new HuffmanInputStream(header, input);
+            OutputStream fileOutput = openOutput()) {
+         byte[] buffer = new byte[MAX_INPUT_BUFFER];
+         int n;
+         while ((n = decoded.read(buffer)) > 0) {
+            fileOutput.write(buffer, 0, n);
+            bytesWritten += n;
+            metrics.setBytesOut(bytesWritten);
+         }
+         return decoded.isVerified();
+      } finally {
+         bytesRead = new File(inFileName).length();
+         publishProgress();
+         addDecodeNanos(began, writeBefore);
+         metrics.finish();
       }
-      return false;
+   }
+
+   /**
+    * Write one decompressed byte and add it to the digest
+    * 
+    * @param fileOutput The output file
+    * @param b          The byte
+    * @throws IOException
+    */
+   private void writeByte(OutputStream fileOutput, int b) throws IOException {
+      fileOutput.write(b);
+      md.update((byte) b);
+      bytesWritten++;
+      if (capture != null) {
+         capture.write(b);
+         if (!cache.canHoldDecoded(capture.size()))
+            capture = null; // Too big to cache, stop copying
+      }
+   }
+
+   /**
+    * Update the metrics during write
+    */
+   private void publishProgress() {
+      metrics.setBytesIn(bytesRead);
+      metrics.setBytesOut(bytesWritten);
    }
 
    /**
@@ -5,15 +5,63 @@ import java.security.MessageDigest;
  * A serializable class to store the header information for a Huffman compressed
  * file
  * 
+ * The header is followed by a single bit stream, or if streams is more than 1,
+ * by blocks of interleaved bit streams. Each block is
+ * 
+ * <pre>
+ * int     number of symbols in the block
+ * int[]   length in bytes of each stream, the jump table
+ * ...     each stream, padded to a whole byte
+ * </pre>
+ * 
+ * Symbol i of a block is in stream i % streams, so the streams can be decoded
+ * side by side.
+ * 
+ * If refresh is set, the header has no codes or digest. It is followed by an
+ * adaptive bit stream and then the digest, see HuffmanOutputStream.
+ * 
  */
 public class HuffmanHeader implements Serializable {
+   private static final long serialVersionUID = -8042334540321363159L; // matches files written before transform was added
+   static final int STREAMS = 4; // Number of streams written when interleaving
+   static final int BLOCK_SYMBOLS = 16 * 1024; // Symbols in each block, the last one can have fewer
    String digestAlgorithm; // the algorithm used to create the digest
    byte[] digest; // the digest of the file
    String[] codes; // the codes for each character, index is the character value
+   SymbolTransform transform; // the extended alphabet, null if codes are for single bytes
+   Long size; // the size of the uncompressed file, null in files written before it was stored
+   int streams; // number of interleaved bit streams, 0 or 1 for a single stream
+   int refresh; // symbols between code refreshes of an adaptive stream, 0 if the codes are here
 
    public HuffmanHeader(String digestAlgorithm, byte[] digest, String[] codes) {
+      this(digestAlgorithm, digest, codes, null);
+   }
+
+   public HuffmanHeader(String digestAlgorithm, byte[] digest, String[] codes, SymbolTransform transform) {
+      this(digestAlgorithm, digest, codes, transform, null);
+   }
+
+   public HuffmanHeader(String digestAlgorithm, byte[] digest, String[] codes, SymbolTransform transform,
+         Long size) {
+      this(digestAlgorithm, digest, codes, transform, size, 1);
+   }
+
+   public HuffmanHeader(String digestAlgorithm, byte[] digest, String[] codes, SymbolTransform transform,
+         Long size, int streams) {
       this.codes = codes;
       this.digest = digest;
       this.digestAlgorithm = digestAlgorithm;
+      this.transform = transform;
+      this.size = size;
+      this.streams = streams;
+   }
+
+   /**
+    * Header for an adaptive stream, the codes are built as it is decoded and
+    * the digest is at the end
+    */
+   public HuffmanHeader(String digestAlgorithm, int refresh) {
+      this.digestAlgorithm = digestAlgorithm;
+      this.refresh = refresh;
    }
-}
\ No newline at end of file
+}
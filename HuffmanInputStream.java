@@ -0,0 +1,143 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Reads a stream written by HuffmanOutputStream
+ *
+ * The decoder keeps its own AdaptiveModel and updates it after every symbol
+ * exactly as the encoder did, so it always has the same codes. Bytes can be
+ * read as soon as their bits arrive, e.g. from a pipe or socket while the
+ * compressor is still writing. A file that is still being written can't be
+ * followed this way: at its current end a FileInputStream returns -1 like at
+ * the real end, and this stream throws EOFException.
+ *
+ * read() returns -1 after the END symbol, and isVerified() then tells if the
+ * digest matched. A stream cut short throws EOFException.
+ *
+ */
+public class HuffmanInputStream extends InputStream {
+   private final InputStream in;
+   private final MessageDigest md;
+   private final AdaptiveModel model;
+   private int bitBuffer; // The current input byte
+   private int bitsLeft = 0; // Unread bits in bitBuffer
+   private boolean ended = false;
+   private boolean verified = false;
+
+   /**
+    * Start reading a compressed stream, reads the header
+    *
+    * @param in The compressed stream, should be buffered
+    * @throws IOException if the header can't be read or the stream is not
+    *                     adaptive
+    */
+   public HuffmanInputStream(InputStream in) throws IOException {
+      this(readHeader(in), in);
+   }
+
+   /**
+    * Read a compressed stream whose header has already been read
+    *
+    * @param header The header
+    * @param in     The rest of the stream
+    * @throws IOException if the header is not for an adaptive stream
+    */
+   HuffmanInputStream(HuffmanHeader header, InputStream in) throws IOException {
+      if (header.refresh <= 0)
+         throw new IOException("Not an adaptive Huffman stream");
+      this.in = in;
+      try {
+         md = MessageDigest.getInstance(header.digestAlgorithm);
+      } catch (NoSuchAlgorithmException e) {
+         throw new IOException(e.getMessage(), e);
+      }
+      model = new AdaptiveModel(header.refresh);
+   }
+
+   private static HuffmanHeader readHeader(InputStream in) throws IOException {
+      try {
+         // Not closed, that would close in
+         return (HuffmanHeader) new ObjectInputStream(in).readObject();
+      } catch (ClassNotFoundException | ClassCastException e) {
+         throw new IOException("Not a valid Huffman compressed file", e);
+      }
+   }
+
+   /**
+    * Check the digest
+    *
+    * @return true if the whole stream has been read and its digest matches
+    */
+   public boolean isVerified() {
+      return verified;
+   }
+
+   @Override
+   public int read() throws IOException {
+      while (!ended) {
+         int symbol = readSymbol();
+         if (symbol < AdaptiveModel.END) {
+            model.update(symbol);
+            md.update((byte) symbol);
+            return symbol;
+         }
+         if (symbol == AdaptiveModel.FLUSH) {
+            model.update(symbol);
+            bitsLeft = 0; // Skip the padding
+         } else {
+            end();
+         }
+      }
+      return -1;
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+         return 0;
+      int n = 0;
+      while (n < len) {
+         int c = read();
+         if (c < 0)
+            break;
+         b[off + n++] = (byte) c;
+         if (bitsLeft == 0 && in.available() == 0)
+            break; // Don't wait for more input once there are some bytes to return
+      }
+      return n == 0 ? -1 : n;
+   }
+
+   /** Walk the tree one bit at a time to the next symbol */
+   private int readSymbol() throws IOException {
+      Node node = model.root;
+      while (node.left != null) {
+         if (bitsLeft == 0) {
+            bitBuffer = in.read();
+            if (bitBuffer < 0)
+               throw new EOFException("Compressed data ended early");
+            bitsLeft = 8;
+         }
+         bitsLeft--;
+         node = ((bitBuffer >> bitsLeft) & 1) == 0 ? node.left : node.right;
+      }
+      return node.element;
+   }
+
+   /** Read the digest after the END symbol and compare it */
+   private void end() throws IOException {
+      ended = true;
+      byte[] digest = in.readNBytes(md.getDigestLength());
+      if (digest.length < md.getDigestLength())
+         throw new EOFException("Compressed data ended early");
+      verified = MessageDigest.isEqual(md.digest(), digest);
+   }
+
+   @Override
+   public void close() throws IOException {
+      in.close();
+   }
+}
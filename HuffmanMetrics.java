@@ -0,0 +1,325 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timers for one compression or decompression
+ * 
+ * Updated by the thread doing the work, and safe to read from any other thread
+ * while it runs. Byte counts are published in batches, so a reader may lag the
+ * worker by a few KB until the run finishes.
+ * 
+ * Bytes in counts the reads of the current pass. Compression reads the file
+ * twice, so it goes back to 0 when getCurrentPhase() moves from histogram to
+ * encode.
+ * 
+ */
+public class HuffmanMetrics implements HuffmanMetricsMBean {
+   /**
+    * The parts of a run that are timed
+    */
+   public enum Phase {
+      HISTOGRAM, // counting byte (or symbol) frequencies
+      DIGEST, // hashing the uncompressed data
+      TREE, // building the Huffman tree and codes, or the decode map
+      HEADER, // writing or reading the HuffmanHeader
+      ENCODE, // turning bytes into bits
+      DECODE, // turning bits into bytes and checking them, and writing them for HuffmanDecoder
+      WRITE // writing the output file
+   }
+
+   private static final long WINDOW_NANOS = 1_000_000_000L; // Shortest time the current throughput is measured over
+
+   private final boolean compressing;
+   private final long startNanos = System.nanoTime();
+   private volatile long endNanos = -1; // -1 while the run is in progress
+   private final AtomicLong bytesIn = new AtomicLong();
+   private final AtomicLong bytesOut = new AtomicLong();
+   private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+   private volatile Phase currentPhase; // The pass in progress, null if none has started
+   private ObjectName objectName; // set while registered with JMX
+
+   // Start of the current throughput window, guarded by this
+   private long windowStartNanos = startNanos;
+   private long windowStartBytes = 0;
+   private double windowMBps = -1; // Rate over the last full window, -1 before the first
+
+   /**
+    * Create the metrics, the clock starts now
+    * 
+    * @param compressing true for compression, false for decompression
+    */
+   public HuffmanMetrics(boolean compressing) {
+      this.compressing = compressing;
+   }
+
+   /** Add to the number of bytes read */
+   void addBytesIn(long n) {
+      bytesIn.addAndGet(n);
+   }
+
+   /** Set the number of bytes read */
+   void setBytesIn(long n) {
+      bytesIn.set(n);
+   }
+
+   /** Add to the number of bytes written */
+   void addBytesOut(long n) {
+      bytesOut.addAndGet(n);
+   }
+
+   /** Set the number of bytes written */
+   void setBytesOut(long n) {
+      bytesOut.set(n);
+   }
+
+   /**
+    * Add time spent in a phase
+    * 
+    * @param phase The phase
+    * @param began The System.nanoTime() when the work started
+    */
+   void addPhaseNanos(Phase phase, long began) {
+      phaseNanos.addAndGet(phase.ordinal(), System.nanoTime() - began);
+   }
+
+   /**
+    * Add a time to a phase
+    * 
+    * @param phase The phase
+    * @param nanos Time in nanoseconds
+    */
+   void addNanos(Phase phase, long nanos) {
+      phaseNanos.addAndGet(phase.ordinal(), nanos);
+   }
+
+   /** Note which pass is running, for getCurrentPhase() */
+   void startPhase(Phase phase) {
+      currentPhase = phase;
+   }
+
+   /**
+    * Wrap a stream so the time spent in its writes is added to a phase
+    * 
+    * Put a buffer in front of it, timing every single byte would cost more
+    * than the write.
+    * 
+    * @param out   The stream to time
+    * @param phase The phase to add the time to
+    * @return The timed stream
+    */
+   OutputStream timed(OutputStream out, Phase phase) {
+      return new FilterOutputStream(out) {
+         @Override
+         public void write(int b) throws IOException {
+            long began = System.nanoTime();
+            out.write(b);
+            addPhaseNanos(phase, began);
+         }
+
+         @Override
+         public void write(byte[] b, int off, int len) throws IOException {
+            long began = System.nanoTime();
+            out.write(b, off, len);
+            addPhaseNanos(phase, began);
+         }
+
+         @Override
+         public void flush() throws IOException {
+            long began = System.nanoTime();
+            out.flush();
+            addPhaseNanos(phase, began);
+         }
+      };
+   }
+
+   /** Stop the clock */
+   void finish() {
+      if (endNanos < 0)
+         endNanos = System.nanoTime();
+      currentPhase = null;
+   }
+
+   /**
+    * Get the time spent in a phase
+    * 
+    * @param phase The phase
+    * @return Time in nanoseconds
+    */
+   public long getPhaseNanos(Phase phase) {
+      return phaseNanos.get(phase.ordinal());
+   }
+
+   @Override
+   public boolean isCompressing() {
+      return compressing;
+   }
+
+   @Override
+   public boolean isFinished() {
+      return endNanos >= 0;
+   }
+
+   @Override
+   public String getCurrentPhase() {
+      Phase phase = currentPhase;
+      return phase == null ? null : phase.name().toLowerCase();
+   }
+
+   @Override
+   public long getBytesIn() {
+      return bytesIn.get();
+   }
+
+   @Override
+   public long getBytesOut() {
+      return bytesOut.get();
+   }
+
+   @Override
+   public long getElapsedNanos() {
+      long end = endNanos;
+      return (end < 0 ? System.nanoTime() : end) - startNanos;
+   }
+
+   /** Uncompressed bytes handled so far in the current pass */
+   private long getUncompressedBytes() {
+      return compressing ? getBytesIn() : getBytesOut();
+   }
+
+   /** Convert bytes in a time to MB per second */
+   private static double toMBps(long bytes, long nanos) {
+      return nanos == 0 ? 0 : (bytes / (1024.0 * 1024.0)) / (nanos / 1e9);
+   }
+
+   /**
+    * Uncompressed bytes handled per second, averaged since the start, in MB
+    * 
+    * Compression reads the file twice, this only counts the bytes of the
+    * current pass.
+    */
+   @Override
+   public double getAverageThroughputMBps() {
+      return toMBps(getUncompressedBytes(), getElapsedNanos());
+   }
+
+   /**
+    * Uncompressed bytes handled per second recently, in MB
+    * 
+    * Measured from the atomics over a window of at least a second, which
+    * starts again at the first call after a window is complete. Before the
+    * first window is complete, this is the average.
+    */
+   @Override
+   public synchronized double getCurrentThroughputMBps() {
+      long end = endNanos;
+      long now = end < 0 ? System.nanoTime() : end;
+      long bytes = getUncompressedBytes();
+      if (now - windowStartNanos >= WINDOW_NANOS) {
+         // A smaller count means a new pass started, counted from 0
+         long handled = bytes >= windowStartBytes ? bytes - windowStartBytes : bytes;
+         windowMBps = toMBps(handled, now - windowStartNanos);
+         windowStartNanos = now;
+         windowStartBytes = bytes;
+      }
+      return windowMBps < 0 ? getAverageThroughputMBps() : windowMBps;
+   }
+
+   /**
+    * Compressed size divided by uncompressed size, so far
+    */
+   @Override
+   public double getCompressionRatio() {
+      long in = getBytesIn();
+      long out = getBytesOut();
+      if (compressing)
+         return in == 0 ? 0 : (double) out / in;
+      return out == 0 ? 0 : (double) in / out;
+   }
+
+   @Override
+   public long getHistogramNanos() {
+      return getPhaseNanos(Phase.HISTOGRAM);
+   }
+
+   @Override
+   public long getDigestNanos() {
+      return getPhaseNanos(Phase.DIGEST);
+   }
+
+   @Override
+   public long getTreeNanos() {
+      return getPhaseNanos(Phase.TREE);
+   }
+
+   @Override
+   public long getHeaderNanos() {
+      return getPhaseNanos(Phase.HEADER);
+   }
+
+   @Override
+   public long getEncodeNanos() {
+      return getPhaseNanos(Phase.ENCODE);
+   }
+
+   @Override
+   public long getDecodeNanos() {
+      return getPhaseNanos(Phase.DECODE);
+   }
+
+   @Override
+   public long getWriteNanos() {
+      return getPhaseNanos(Phase.WRITE);
+   }
+
+   /**
+    * Register with the platform MBean server
+    * 
+    * @param name Name to tell this run apart from others, e.g. the file name
+    * @return The name it was registered under
+    * @throws JMException
+    */
+   public synchronized ObjectName registerMBean(String name) throws JMException {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      objectName = new ObjectName("HuffmanProject:type=HuffmanMetrics,name=" + ObjectName.quote(name));
+      server.registerMBean(this, objectName);
+      return objectName;
+   }
+
+   /**
+    * Remove from the platform MBean server, if registered
+    * 
+    * @throws JMException
+    */
+   public synchronized void unregisterMBean() throws JMException {
+      if (objectName != null) {
+         ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+         objectName = null;
+      }
+   }
+
+   /**
+    * Summary for printing
+    */
+   @Override
+   public String toString() {
+      StringBuilder s = new StringBuilder();
+      s.append(String.format("Bytes in: %d%nBytes out: %d%n", getBytesIn(), getBytesOut()));
+      s.append(String.format("Compression ratio: %.3f%n", getCompressionRatio()));
+      s.append(String.format("Throughput: %.2f MB/s average%n", getAverageThroughputMBps()));
+      s.append(String.format("Elapsed: %.1f ms%n", getElapsedNanos() / 1e6));
+      for (Phase phase : Phase.values()) {
+         long nanos = getPhaseNanos(phase);
+         if (nanos > 0)
+            s.append(String.format("  %-10s %10.1f ms%n", phase.name().toLowerCase(), nanos / 1e6));
+      }
+      return s.toString();
+   }
+}
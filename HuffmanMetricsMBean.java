@@ -0,0 +1,38 @@
+/**
+ * JMX view of HuffmanMetrics
+ * 
+ * Sizes are in bytes, times are in nanoseconds.
+ */
+public interface HuffmanMetricsMBean {
+   boolean isCompressing();
+
+   boolean isFinished();
+
+   String getCurrentPhase();
+
+   long getBytesIn();
+
+   long getBytesOut();
+
+   double getAverageThroughputMBps();
+
+   double getCurrentThroughputMBps();
+
+   double getCompressionRatio();
+
+   long getElapsedNanos();
+
+   long getHistogramNanos();
+
+   long getDigestNanos();
+
+   long getTreeNanos();
+
+   long getHeaderNanos();
+
+   long getEncodeNanos();
+
+   long getDecodeNanos();
+
+   long getWriteNanos();
+}
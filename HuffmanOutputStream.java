@@ -0,0 +1,139 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * One pass adaptive Huffman compression of a stream of unknown length
+ *
+ * Bytes are coded as they are written, with codes from an AdaptiveModel, so
+ * nothing has to be read ahead. Every whole byte of output goes straight to the
+ * underlying stream, which should not be buffered if latency matters. flush()
+ * also pushes out the last partial byte, at the cost of a FLUSH symbol and
+ * some padding, so call it e.g. after each log line rather than each byte.
+ *
+ * The output is a HuffmanHeader without codes or digest, the bit stream, an
+ * END symbol, and then the digest of everything written. HuffmanDecompress and
+ * HuffmanInputStream read it.
+ *
+ */
+public class HuffmanOutputStream extends OutputStream {
+   static final int DEFAULT_REFRESH = 64 * 1024; // Symbols between code refreshes
+
+   private final OutputStream out;
+   private final BitOutputStream bitOut;
+   private final MessageDigest md;
+   private final AdaptiveModel model;
+   private final HuffmanMetrics metrics = new HuffmanMetrics(true);
+   private final long headerSize;
+   private boolean unflushed = false; // Bits written since the last flush()
+   private boolean closed = false;
+
+   /**
+    * Start a compressed stream, the header is written straight away
+    *
+    * @param out           Where to write the compressed stream
+    * @param hashAlgorithm The hash algorithm for the digest
+    * @param refresh       Symbols between code refreshes
+    * @throws IOException
+    * @throws NoSuchAlgorithmException
+    */
+   public HuffmanOutputStream(OutputStream out, String hashAlgorithm, int refresh)
+         throws IOException, NoSuchAlgorithmException {
+      this.out = out;
+      md = MessageDigest.getInstance(hashAlgorithm);
+      model = new AdaptiveModel(refresh);
+
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      try (ObjectOutputStream objOut = new ObjectOutputStream(header)) {
+         objOut.writeObject(new HuffmanHeader(hashAlgorithm, refresh));
+      }
+      header.writeTo(out);
+      out.flush();
+      headerSize = header.size();
+      bitOut = new BitOutputStream(out);
+      metrics.setBytesOut(headerSize);
+   }
+
+   /**
+    * Start a compressed stream with the default refresh interval
+    */
+   public HuffmanOutputStream(OutputStream out, String hashAlgorithm) throws IOException, NoSuchAlgorithmException {
+      this(out, hashAlgorithm, DEFAULT_REFRESH);
+   }
+
+   /**
+    * Get the metrics, bytes in and out are updated on every write
+    *
+    * @return The metrics
+    */
+   public HuffmanMetrics getMetrics() {
+      return metrics;
+   }
+
+   @Override
+   public void write(int b) throws IOException {
+      if (closed)
+         throw new IOException("Stream closed");
+      b &= 0xFF;
+      writeSymbol(b);
+      md.update((byte) b);
+      metrics.addBytesIn(1);
+      metrics.setBytesOut(headerSize + bitOut.getBytesWritten());
+   }
+
+   @Override
+   public void write(byte[] b, int off, int len) throws IOException {
+      if (closed)
+         throw new IOException("Stream closed");
+      for (int i = off; i < off + len; i++)
+         writeSymbol(b[i] & 0xFF);
+      md.update(b, off, len);
+      metrics.addBytesIn(len);
+      metrics.setBytesOut(headerSize + bitOut.getBytesWritten());
+   }
+
+   /** Write the code of a symbol and update the model */
+   private void writeSymbol(int symbol) throws IOException {
+      bitOut.writeBit(model.codes[symbol]);
+      model.update(symbol);
+      unflushed = true;
+   }
+
+   /**
+    * Write out everything so far, padded to a whole byte
+    *
+    * Does nothing if nothing has been written since the last flush.
+    */
+   @Override
+   public void flush() throws IOException {
+      if (closed)
+         return;
+      if (unflushed) {
+         writeSymbol(AdaptiveModel.FLUSH);
+         bitOut.flush();
+         unflushed = false;
+         metrics.setBytesOut(headerSize + bitOut.getBytesWritten());
+      }
+      out.flush();
+   }
+
+   /**
+    * End the stream with the digest, and close the underlying stream
+    */
+   @Override
+   public void close() throws IOException {
+      if (closed)
+         return;
+      bitOut.writeBit(model.codes[AdaptiveModel.END]);
+      bitOut.flush();
+      byte[] digest = md.digest();
+      out.write(digest);
+      closed = true;
+      metrics.setBytesOut(headerSize + bitOut.getBytesWritten() + digest.length);
+      metrics.finish();
+      out.close();
+   }
+}
@@ -0,0 +1,279 @@
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Optional pre-pass that extends the Huffman alphabet beyond single bytes
+ *
+ * Symbols 0-255 are literal bytes. If run-length coding is on, the next
+ * RUN_MAX symbols mean "repeat the previous byte 1..RUN_MAX times", although
+ * the encoder only uses them for at least MIN_RUN repeats. The selected byte
+ * pairs follow, each one standing for two bytes.
+ * The transform is stored in the HuffmanHeader so the decompressor can expand
+ * the symbols again.
+ *
+ */
+public class SymbolTransform implements Serializable {
+   private static final long serialVersionUID = 1L;
+   static final int SIZE = 256; // Number of literal symbols
+   static final int RUN_MAX = 64; // Longest run a single run symbol can hold
+   static final int MAX_PAIRS = 1024; // Upper limit on the number of pair symbols
+   static final int MIN_RUN = 2; // Fewer repeats are coded as plain bytes, a run symbol would cost more
+   private static final int ENTRY_BITS = 8 * 3 + 32; // Header cost of a pair, besides its code: string header and int
+
+   boolean runLength; // true if run symbols are in the alphabet
+   int[] pairs; // the selected pairs, stored as (first << 8) | second
+   private transient int[] pairSymbol; // pair value -> symbol, -1 if not a pair
+
+   /**
+    * Create a transform
+    *
+    * @param runLength true to add run-length symbols
+    * @param pairs     the byte pairs to add, stored as (first << 8) | second
+    */
+   public SymbolTransform(boolean runLength, int[] pairs) {
+      this.runLength = runLength;
+      this.pairs = pairs;
+   }
+
+   /**
+    * Pick the byte pairs that save the most bits
+    *
+    * The saving of a pair is the drop in the entropy of the counts when its
+    * uses are taken from its two bytes, less its code and entry in the header.
+    * Pairs are added one at a time, the best first, and the others estimated
+    * again with what is left of the counts, as a pair that doesn't pay on its
+    * own can once other pairs have used up most of its bytes. Stops when no
+    * pair saves anything.
+    *
+    * @param runLength  true to add run-length symbols
+    * @param maxPairs   The maximum number of pairs to add
+    * @param byteCounts The byte frequencies
+    * @param pairCounts The pair frequencies, index is (first << 8) | second
+    * @return The transform
+    */
+   public static SymbolTransform choose(boolean runLength, int maxPairs, int[] byteCounts, int[] pairCounts) {
+      maxPairs = Math.min(maxPairs, MAX_PAIRS);
+      if (maxPairs <= 0 || pairCounts == null)
+         return new SymbolTransform(runLength, new int[0]);
+
+      long total = 0;
+      long[] counts = new long[SIZE]; // What the chosen pairs leave of each byte
+      for (int i = 0; i < SIZE; i++) {
+         counts[i] = byteCounts[i];
+         total += byteCounts[i];
+      }
+      int[] candidates = new int[SIZE * SIZE];
+      int n = 0;
+      for (int i = 0; i < pairCounts.length; i++) {
+         if (runLength && (i >> 8) == (i & 0xFF))
+            continue; // Already covered by the run symbols
+         if (pairCounts[i] > 1) // Once can never pay for a code
+            candidates[n++] = i;
+      }
+
+      int[] pairs = new int[maxPairs];
+      int chosen = 0;
+      while (chosen < maxPairs) {
+         int best = -1;
+         double bestSaving = 0;
+         for (int j = 0; j < n; j++) {
+            int pair = candidates[j];
+            long count = pairCounts[pair];
+            long a = counts[pair >> 8];
+            long b = counts[pair & 0xFF];
+            // Only the terms of the total and the three symbols change, see bits()
+            double before = bits(total) - bits(a) - bits(b);
+            double after = bits(total - count) - bits(a - count) - bits(b - count) - bits(count);
+            double saving = before - after - (8 * Math.log((double) total / count) / Math.log(2) + ENTRY_BITS);
+            if (saving > bestSaving) {
+               best = j;
+               bestSaving = saving;
+            }
+         }
+         if (best < 0)
+            break;
+         int pair = candidates[best];
+         candidates[best] = candidates[--n];
+         pairs[chosen++] = pair;
+         counts[pair >> 8] -= pairCounts[pair];
+         counts[pair & 0xFF] -= pairCounts[pair];
+         total -= pairCounts[pair];
+      }
+      return new SymbolTransform(runLength, Arrays.copyOf(pairs, chosen));
+   }
+
+   /**
+    * n log2 n, the entropy of counts n_i with total N being N log2 N - sum of
+    * n_i log2 n_i bits. Counted pairs can overlap, so n can come out negative
+    */
+   private static double bits(long n) {
+      return n <= 0 ? 0 : n * Math.log(n) / Math.log(2);
+   }
+
+   /**
+    * Get the number of symbols in the extended alphabet
+    *
+    * @return The alphabet size
+    */
+   public int alphabetSize() {
+      return pairBase() + pairs.length;
+   }
+
+   /** First run symbol, only meaningful if runLength is set */
+   private int runBase() {
+      return SIZE;
+   }
+
+   /** First pair symbol */
+   private int pairBase() {
+      return SIZE + (runLength ? RUN_MAX : 0);
+   }
+
+   /**
+    * Look up the symbol for a byte pair
+    *
+    * @return The symbol, or -1 if the pair is not in the alphabet
+    */
+   private int pairSymbol(int first, int second) {
+      if (pairSymbol == null) { // Built on first use, not serialized
+         int[] lookup = new int[SIZE * SIZE];
+         Arrays.fill(lookup, -1);
+         for (int i = 0; i < pairs.length; i++)
+            lookup[pairs[i]] = pairBase() + i;
+         pairSymbol = lookup;
+      }
+      return pairSymbol[(first << 8) | second];
+   }
+
+   /**
+    * Receives the symbols produced by an Encoder
+    */
+   public interface SymbolSink {
+      void accept(int symbol) throws IOException;
+   }
+
+   /**
+    * Receives the bytes produced by expanding a symbol
+    */
+   public interface ByteSink {
+      void accept(int b) throws IOException;
+   }
+
+   /**
+    * Create an encoder that turns bytes into symbols
+    *
+    * @param sink Where to send the symbols
+    * @return The encoder
+    */
+   public Encoder encoder(SymbolSink sink) {
+      return new Encoder(sink);
+   }
+
+   /**
+    * Streaming byte to symbol converter
+    *
+    * Bytes are fed one at a time with accept(), and finish() must be called
+    * after the last byte. At most one byte and one run are held back.
+    */
+   public class Encoder {
+      private final SymbolSink sink;
+      private int previous = -1; // Last byte the decoder will have written
+      private int pending = -1; // Byte waiting to see if it starts a pair
+      private int run = 0; // Number of repeats of previous seen so far
+
+      private Encoder(SymbolSink sink) {
+         this.sink = sink;
+      }
+
+      /**
+       * Add the next byte
+       *
+       * @param b The byte, 0-255
+       * @throws IOException
+       */
+      public void accept(int b) throws IOException {
+         if (run > 0) {
+            if (b == previous && run < RUN_MAX) {
+               run++;
+               return;
+            }
+            if (run < MIN_RUN) { // A single repeat is a plain byte, or the start of a pair
+               run = 0;
+               int symbol = pairs.length > 0 ? pairSymbol(previous, b) : -1;
+               if (symbol >= 0) {
+                  sink.accept(symbol);
+                  previous = b;
+                  return;
+               }
+               sink.accept(previous);
+            } else {
+               sink.accept(runBase() + run - 1);
+               run = 0;
+            }
+         }
+         if (pending >= 0) {
+            int symbol = pairSymbol(pending, b);
+            if (symbol >= 0) {
+               sink.accept(symbol);
+               pending = -1;
+               previous = b;
+               return;
+            }
+            sink.accept(pending);
+            previous = pending;
+            pending = -1;
+         }
+         if (runLength && b == previous) {
+            run = 1;
+         } else if (pairs.length > 0) {
+            pending = b;
+         } else {
+            sink.accept(b);
+            previous = b;
+         }
+      }
+
+      /**
+       * Flush the held back byte or run
+       *
+       * @throws IOException
+       */
+      public void finish() throws IOException {
+         if (run > 0) {
+            sink.accept(run < MIN_RUN ? previous : runBase() + run - 1);
+            run = 0;
+         }
+         if (pending >= 0) {
+            sink.accept(pending);
+            previous = pending;
+            pending = -1;
+         }
+      }
+   }
+
+   /**
+    * Expand a symbol back into bytes
+    *
+    * @param symbol   The symbol to expand
+    * @param previous The last byte written, -1 if none
+    * @param out      Where to send the bytes
+    * @return The last byte written
+    * @throws IOException
+    */
+   public int expand(int symbol, int previous, ByteSink out) throws IOException {
+      if (symbol < SIZE) {
+         out.accept(symbol);
+         return symbol;
+      }
+      if (symbol < pairBase()) { // A run of the previous byte
+         for (int i = runBase(); i <= symbol; i++)
+            out.accept(previous);
+         return previous;
+      }
+      int pair = pairs[symbol - pairBase()];
+      out.accept(pair >> 8);
+      out.accept(pair & 0xFF);
+      return pair & 0xFF;
+   }
+}